@@ -0,0 +1,122 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the hot paths of {@link MagicSquare}, run after the JIT warm-up that the wall clock of
+ * {@link MagicSquare#main} includes :
+ *  - the check of a node, placing a value on a half filled board kept in the state, checking the board as the search
+ *    does, and removing the value
+ *  - the full enumeration of the 3x3 and 4x4 squares by the plain recursive search on the calling thread
+ *    (sequential), and through {@link MagicSquare#enumerate} on a fork/join pool of 1, 2 or 4 threads (parallel),
+ *    each call of which creates the pool and splits the search into tasks
+ *  - the formatting of a square by {@link MagicSquare#printMagicSquare}
+ *
+ * The states hold the parameters, so each benchmark only runs for the orders and thread counts it depends on.
+ * {@link #main} writes the results as JSON to the file given as first argument, jmh-result.json by default.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MagicSquareBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Enumeration {
+
+        @Param({"3", "4"})
+        public int order;
+
+        @Param({"1", "2", "4"})
+        public int threads;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Sequential {
+
+        @Param({"3", "4"})
+        public int order;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Square {
+
+        @Param({"3", "4", "5", "8"})
+        public int order;
+
+        public int[] cells;
+        /**
+         * Board holding the first half of the cells, the next cell being checked.
+         */
+        public MagicSquare.NodeCheck node;
+        public int position;
+
+        @Setup(Level.Trial)
+        public void construct() {
+            this.cells = MagicSquareConstruction.construct(this.order);
+            this.position = this.cells.length / 2;
+            this.node = new MagicSquare.NodeCheck(this.cells, this.order, this.position);
+        }
+    }
+
+    /**
+     * @return the number of magic squares, so that the search is not optimized away
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long enumerate(Enumeration state) {
+        return MagicSquare.enumerate(state.order, MagicSquare.Mode.ALL, state.threads, cells -> { });
+    }
+
+    /**
+     * @return the number of magic squares, so that the search is not optimized away
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long enumerateSequential(Sequential state) {
+        return MagicSquare.countSequential(state.order);
+    }
+
+    /**
+     * One operation checks one node, halfway down the path leading to a magic square.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int isValidPerNode(Square state) {
+        return state.node.check(state.position, state.cells[state.position]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String printMagicSquare(Square state) {
+        int[] cells = state.cells;
+
+        return MagicSquare.formatMagicSquare(cells.length, position -> cells[position]);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MagicSquareBenchmark.class.getSimpleName())
+                .resultFormat(ResultFormatType.JSON)
+                .result(args.length > 0 ? args[0] : "jmh-result.json")
+                .build()).run();
+    }
+}
@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Enumerates the magic squares line by line instead of cell by cell. All the sets of N values summing to the
+ * expected sum are precomputed as bitmasks, value v being the bit v - 1, so the search only handles whole lines :
+ *  1. the rows are chosen as a partition of the values into N of these sets
+ *  2. the columns are chosen as a partition into sets meeting each row in exactly one value, so that the value of
+ *     each cell is the single bit of the intersection of its row and its column
+ *  3. the rows and the columns are put in order, keeping the orders whose two diagonals reach the expected sum
+ *
+ * The partitions are searched without their order, each set holding the smallest value left, and the N! orders
+ * of the rows and of the columns are walked afterwards, so each magic square is found exactly once.
+ * The values must fit in a long, which limits the order to 8.
+ */
+public final class LinePartitionSearch {
+
+    /**
+     * Greatest order the search can run. The values fit in the bits of a long up to order 8, but from order 6 there are
+     * 32134 sets of values reaching the expected sum to partition the values into, and each pair of partitions is
+     * ordered through N! * N! permutations.
+     */
+    private static final int MAX_ORDER = 5;
+
+    private final int order;
+    private final int expectedSum;
+    /**
+     * The sets of N values summing to {@link #expectedSum}, grouped by their smallest value, minus one.
+     */
+    private final long[][] linesByLowest;
+    /**
+     * The N! permutations of 0 to N - 1.
+     */
+    private final int[][] permutations;
+
+    private LinePartitionSearch(int order) {
+        if (order < 1 || order > LinePartitionSearch.MAX_ORDER) {
+            throw new IllegalArgumentException("The line partition search needs an order between 1 and "
+                    + LinePartitionSearch.MAX_ORDER + ", got " + order);
+        }
+
+        this.order = order;
+        this.expectedSum = order * (order * order + 1) / 2;
+        this.linesByLowest = this.lines();
+        this.permutations = LinePartitionSearch.permutations(order);
+    }
+
+    /**
+     * Generate all the magic squares of the given order, handing each one to the sink as soon as it is found.
+     * As with {@link MagicSquare#enumerate(int, MagicSquare.Mode, int, Consumer)}, the sink is called from the
+     * worker threads and gets cells in row-major order that are reused for the next solutions.
+     *
+     * @param order order of the magic squares, up to 5
+     * @param parallelism number of worker threads
+     * @param sink consumer of the solutions
+     * @return the number of magic squares
+     */
+    public static long enumerate(int order, int parallelism, Consumer<int[]> sink) {
+        LinePartitionSearch search = new LinePartitionSearch(order);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        RowsTask root = search.new RowsTask(sink);
+
+        try {
+            pool.invoke(root);
+        } finally {
+            pool.shutdown();
+        }
+
+        return root.countSolutions();
+    }
+
+    private long[][] lines() {
+        List<List<Long>> lines = new ArrayList<>();
+        for (int value = 0; value < this.order * this.order; ++value) {
+            lines.add(new ArrayList<>());
+        }
+
+        this.addLines(1, 0, 0, 0L, lines);
+
+        long[][] linesByLowest = new long[lines.size()][];
+        for (int lowest = 0; lowest < lines.size(); ++lowest) {
+            linesByLowest[lowest] = lines.get(lowest).stream().mapToLong(Long::longValue).toArray();
+        }
+
+        return linesByLowest;
+    }
+
+    /**
+     * Add the sets completing the given one with values from the given one upwards.
+     */
+    private void addLines(int value, int count, int sum, long line, List<List<Long>> lines) {
+        if (count == this.order) {
+            if (sum == this.expectedSum) {
+                lines.get(Long.numberOfTrailingZeros(line)).add(line);
+            }
+
+            return;
+        }
+
+        int missing = this.order - count;
+        for (int next = value; next <= this.order * this.order - missing + 1; ++next) {
+            // The smallest completion with next is next + (next + 1) + ... ; beyond the sum, so are the greater ones
+            if (sum + missing * next + missing * (missing - 1) / 2 > this.expectedSum) {
+                return;
+            }
+
+            this.addLines(next + 1, count + 1, sum + next, line | (1L << (next - 1)), lines);
+        }
+    }
+
+    private static int[][] permutations(int order) {
+        List<int[]> permutations = new ArrayList<>();
+        LinePartitionSearch.addPermutations(new int[order], 0, 0L, permutations);
+
+        return permutations.toArray(new int[0][]);
+    }
+
+    private static void addPermutations(int[] permutation, int index, long used, List<int[]> permutations) {
+        if (index == permutation.length) {
+            permutations.add(permutation.clone());
+            return;
+        }
+
+        for (int k = 0; k < permutation.length; ++k) {
+            if ((used & (1L << k)) == 0) {
+                permutation[index] = k;
+                LinePartitionSearch.addPermutations(permutation, index + 1, used | (1L << k), permutations);
+            }
+        }
+    }
+
+    /**
+     * Search of the partitions whose first row is given, or of all of them for the root task, which forks one task
+     * per first row. Each task owns its lines, its cells and its counter.
+     */
+    private final class RowsTask extends RecursiveAction {
+
+        private final Consumer<int[]> sink;
+        private final long firstRow;
+        private final long[] rows = new long[LinePartitionSearch.this.order];
+        private final long[] columns = new long[LinePartitionSearch.this.order];
+        private final int[][] values = new int[LinePartitionSearch.this.order][LinePartitionSearch.this.order];
+        private final int[] cells = new int[LinePartitionSearch.this.order * LinePartitionSearch.this.order];
+        private final List<RowsTask> subtasks = new ArrayList<>();
+        private long solutionCount;
+
+        private RowsTask(Consumer<int[]> sink) {
+            this(sink, 0L);
+        }
+
+        private RowsTask(Consumer<int[]> sink, long firstRow) {
+            this.sink = sink;
+            this.firstRow = firstRow;
+        }
+
+        private long countSolutions() {
+            long count = this.solutionCount;
+
+            for (RowsTask subtask : this.subtasks) {
+                count += subtask.countSolutions();
+            }
+
+            return count;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.firstRow != 0L) {
+                this.rows[0] = this.firstRow;
+                this.chooseRows(1, this.firstRow);
+                return;
+            }
+
+            for (long row : LinePartitionSearch.this.linesByLowest[0]) {
+                this.subtasks.add(new RowsTask(this.sink, row));
+            }
+
+            ForkJoinTask.invokeAll(this.subtasks);
+        }
+
+        /**
+         * Choose the next row as a set holding the smallest value left.
+         *
+         * @param index number of rows chosen
+         * @param used bitset of the values of the chosen rows
+         */
+        private void chooseRows(int index, long used) {
+            int n = LinePartitionSearch.this.order;
+
+            if (index == n) {
+                this.chooseColumns(0, 0L, this.transversals());
+                return;
+            }
+
+            for (long row : LinePartitionSearch.this.linesByLowest[Long.numberOfTrailingZeros(~used)]) {
+                if ((row & used) == 0) {
+                    this.rows[index] = row;
+                    this.chooseRows(index + 1, used | row);
+                }
+            }
+        }
+
+        /**
+         * @return the sets meeting each row in exactly one value, grouped by their smallest value
+         */
+        private long[][] transversals() {
+            long[][] lines = LinePartitionSearch.this.linesByLowest;
+            long[][] transversals = new long[lines.length][];
+
+            for (int lowest = 0; lowest < lines.length; ++lowest) {
+                long[] kept = new long[lines[lowest].length];
+                int count = 0;
+
+                for (long line : lines[lowest]) {
+                    if (this.isTransversal(line)) {
+                        kept[count++] = line;
+                    }
+                }
+
+                transversals[lowest] = Arrays.copyOf(kept, count);
+            }
+
+            return transversals;
+        }
+
+        private boolean isTransversal(long line) {
+            for (long row : this.rows) {
+                if (Long.bitCount(line & row) != 1) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Choose the next column as a transversal holding the smallest value left.
+         *
+         * @param index number of columns chosen
+         * @param used bitset of the values of the chosen columns
+         */
+        private void chooseColumns(int index, long used, long[][] transversals) {
+            if (index == LinePartitionSearch.this.order) {
+                this.orderLines();
+                return;
+            }
+
+            for (long column : transversals[Long.numberOfTrailingZeros(~used)]) {
+                if ((column & used) == 0) {
+                    this.columns[index] = column;
+                    this.chooseColumns(index + 1, used | column, transversals);
+                }
+            }
+        }
+
+        /**
+         * Put the chosen rows and columns in order. A matching of the rows to the columns whose values sum to the
+         * expected sum gives the first diagonal, whatever the order of the rows. Each order of the rows then gives
+         * the order of the columns, and the second diagonal is checked.
+         */
+        private void orderLines() {
+            int n = LinePartitionSearch.this.order;
+            int expectedSum = LinePartitionSearch.this.expectedSum;
+
+            for (int i = 0; i < n; ++i) {
+                for (int j = 0; j < n; ++j) {
+                    this.values[i][j] = Long.numberOfTrailingZeros(this.rows[i] & this.columns[j]) + 1;
+                }
+            }
+
+            for (int[] matching : LinePartitionSearch.this.permutations) {
+                int firstDiagonal = 0;
+                for (int i = 0; i < n; ++i) {
+                    firstDiagonal += this.values[i][matching[i]];
+                }
+
+                if (firstDiagonal != expectedSum) {
+                    continue;
+                }
+
+                for (int[] rowOrder : LinePartitionSearch.this.permutations) {
+                    int secondDiagonal = 0;
+                    for (int i = 0; i < n; ++i) {
+                        secondDiagonal += this.values[rowOrder[i]][matching[rowOrder[n - 1 - i]]];
+                    }
+
+                    if (secondDiagonal == expectedSum) {
+                        this.addSolution(rowOrder, matching);
+                    }
+                }
+            }
+        }
+
+        private void addSolution(int[] rowOrder, int[] matching) {
+            int n = LinePartitionSearch.this.order;
+
+            for (int i = 0; i < n; ++i) {
+                for (int j = 0; j < n; ++j) {
+                    this.cells[i * n + j] = this.values[rowOrder[i]][matching[rowOrder[j]]];
+                }
+            }
+
+            ++this.solutionCount;
+            this.sink.accept(this.cells);
+        }
+    }
+}
@@ -1,6 +1,22 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.IntStream;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The MagicSquare program generates valid magic square using branch and bound algorithm.
@@ -11,235 +27,2023 @@ import java.util.stream.IntStream;
  */
 public class MagicSquare {
 
-    private static final int SQUARE_SIZE = 4;
-    private static final int EXPECTED_SUM = (SQUARE_SIZE * (SQUARE_SIZE * SQUARE_SIZE + 1)) / 2;
-    //private final List<Integer> magicSquare;
-    //private final boolean[] usedValues;
+    /**
+     * Number of rotations and reflections of a square, all of them being magic if the square is.
+     */
+    private static final int SYMMETRY_COUNT = 8;
+    /**
+     * Two positions give up to N^2 * (N^2 - 1) tasks, enough to balance the uneven subtrees of the first cell.
+     */
+    private static final int DEFAULT_SPLIT_DEPTH = 2;
+    private static final Consumer<int[]> IGNORE = cells -> { };
+    /**
+     * The search tasks look at the cancellation of the search, and publish their progress, once every 1024 nodes.
+     */
+    private static final int CANCELLATION_CHECK_MASK = 1024 - 1;
+    /**
+     * Number of probes below which an estimate is not split into parallel tasks, see {@link #estimate}.
+     */
+    private static final int PROBES_PER_TASK = 256;
+    /**
+     * Constructed squares of greater orders are not printed.
+     */
+    private static final int MAX_PRINTED_ORDER = 32;
+
+    /**
+     * The magic squares to generate.
+     */
+    public enum Mode {
+        /**
+         * Every magic square.
+         */
+        ALL,
+        /**
+         * One magic square per class of rotations and reflections, the one in Frenicle standard form.
+         */
+        ESSENTIALLY_DIFFERENT
+    }
+
+    /**
+     * The order in which the search fills the cells of the square.
+     */
+    public enum FillOrder {
+        /**
+         * Row after row, each from left to right.
+         */
+        ROW_MAJOR,
+        /**
+         * The first row, the first column, the two diagonals, then the next rows and columns in turn,
+         * so that each line is closed as early as possible.
+         */
+        LINES_FIRST,
+        /**
+         * At each step, the empty cell of the fullest line, chosen from the board being searched.
+         */
+        MOST_CONSTRAINED
+    }
+
+    /**
+     * The algorithm searching the subtrees below the prefixes split into parallel tasks.
+     */
+    public enum Engine {
+        /**
+         * Depth-first search of {@link #generateBranchAndBound}, filling the cells in the fill order.
+         */
+        BRANCH_AND_BOUND,
+        /**
+         * Knuth's Algorithm X over Dancing Links : each empty cell and each free value must be covered exactly once,
+         * and the line sums are checked as side conditions on the board.
+         */
+        DANCING_LINKS
+    }
+
+    private final int squareSize;
+    private final Mode mode;
+    private final FillOrder fillOrder;
+    private final Engine engine;
+    /**
+     * Number of positions split into parallel tasks before searching sequentially.
+     */
+    private final int splitDepth;
     private List<List<Integer>> solutions = new ArrayList<>();
+    /**
+     * Number of generated solutions, summed from the counters of the search tasks.
+     */
+    private long solutionCount;
+    /**
+     * Set when the search stops at the first solution found, see {@link #findAny} and {@link #findFirst}.
+     */
+    private boolean stopAtFirst;
+    /**
+     * Set when the first solution must be the lexicographically smallest, see {@link #findFirst}.
+     */
+    private boolean lexicographic;
+    private final AtomicReference<int[]> firstSolution = new AtomicReference<>();
+    private volatile boolean cancelled;
+    /**
+     * Progress on disk of the search, see {@link #countWithCheckpoint}, or null.
+     */
+    private SearchCheckpoint checkpoint;
+    /**
+     * Shape of the last search, summed from the counters of the search tasks.
+     */
+    private SearchStats stats;
+    /**
+     * Live counters of the running search, see {@link SearchProgress}.
+     */
+    private SearchProgress progress;
+    /**
+     * Period and consumer of the progress reports of the searches, see {@link #reportProgress}, or null.
+     */
+    private Duration progressPeriod;
+    private Consumer<String> progressReporter;
+
+    public MagicSquare(int squareSize) {
+        this(squareSize, Mode.ALL);
+    }
+
+    public MagicSquare(int squareSize, Mode mode) {
+        this(squareSize, mode, MagicSquare.DEFAULT_SPLIT_DEPTH);
+    }
+
+    /**
+     * @param squareSize order of the magic squares, the number of cells of a row
+     * @param mode the magic squares to generate
+     * @param splitDepth number of positions split into parallel tasks
+     */
+    public MagicSquare(int squareSize, Mode mode, int splitDepth) {
+        this(squareSize, mode, splitDepth, FillOrder.MOST_CONSTRAINED);
+    }
+
+    /**
+     * @param squareSize order of the magic squares, the number of cells of a row
+     * @param mode the magic squares to generate
+     * @param splitDepth number of positions split into parallel tasks
+     * @param fillOrder the order in which the cells are filled
+     */
+    public MagicSquare(int squareSize, Mode mode, int splitDepth, FillOrder fillOrder) {
+        this(squareSize, mode, splitDepth, fillOrder, Engine.BRANCH_AND_BOUND);
+    }
+
+    /**
+     * @param squareSize order of the magic squares, the number of cells of a row
+     * @param mode the magic squares to generate
+     * @param splitDepth number of positions split into parallel tasks
+     * @param fillOrder the order in which the cells are filled, by the parallel tasks and by the branch and bound engine
+     * @param engine the algorithm searching below the parallel tasks
+     */
+    public MagicSquare(int squareSize, Mode mode, int splitDepth, FillOrder fillOrder, Engine engine) {
+        if (squareSize < 1) {
+            throw new IllegalArgumentException("The size of the magic square must be at least 1, got " + squareSize);
+        }
+
+        if (mode == Mode.ESSENTIALLY_DIFFERENT && squareSize < 3) {
+            throw new IllegalArgumentException("Essentially different magic squares need a size of at least 3, got " + squareSize);
+        }
 
-    public MagicSquare() {
+        if (splitDepth < 0) {
+            throw new IllegalArgumentException("The split depth must be positive, got " + splitDepth);
+        }
 
+        this.squareSize = squareSize;
+        this.mode = mode;
+        this.splitDepth = splitDepth;
+        this.fillOrder = fillOrder;
+        this.engine = engine;
         this.solutions = new ArrayList<>();
     }
 
     /**
-     * Check if the magic square is valid.
-     * Each rows, cols, diagonals sums must be equal to {@link #EXPECTED_SUM}.
-     * 
-     * The structure of each method to check validity is the same :
-     * 	1. Iterate through the values
-     * 	2. If the expected sum is exceeded, return that the magic square is invalid
-     *  3a. If one of the checked values equals 0, return true as the magic square is not finished
-     *  3b. If no value equals 0, check that the actual sum is the same that expected
+     * Get all the correct magic square solutions generated with {@link #generateBranchAndBound},
+     * in the order of their prefixes. Only the first ones are kept by {@link #count}.
+     *
+     * @return the solutions
+     */
+    private List<List<Integer>> getSolutions() {
+        return this.solutions;
+    }
+
+    /**
+     * Get the shape of the last search : the nodes expanded by depth, the values rejected by cause and the time
+     * spent by each task at the split depth.
      *
-     * @see {@link #areRowsValid} to the how the rows are checked
-     * @see {@link #areColsValid} to the how the columns are checked
-     * @see {@link #isFirstDiagValid} to the how the first diagonal is checked
-     * @see {@link #isSecondDiagValid} to the how the second diagonal is checked
-     * 
-     * @return true if valid, false otherwise
+     * @return the statistics, or null if no search has run
      */
-    private boolean isValid(List<Integer> magicSquare) {
-        return this.areRowsValid(magicSquare) && this.areColsValid(magicSquare) && this.isFirstDiagValid(magicSquare) && this.isSecondDiagValid(magicSquare);
+    public SearchStats getStats() {
+        return this.stats;
     }
 
-    private boolean areRowsValid(List<Integer> magicSquare) {
-        int sum;
+    /**
+     * Report the progress of the next searches while they run : the prefixes completed out of the ones created so
+     * far, the part of the tree searched, the nodes per second, the solutions found and the estimated time left,
+     * see {@link SearchProgress}. The reports are made by a background thread, which only reads the counters the
+     * workers publish once every {@link #CANCELLATION_CHECK_MASK} + 1 nodes.
+     *
+     * @param period time between two reports
+     * @param reporter consumer of the reports, or null to stop reporting
+     */
+    public void reportProgress(Duration period, Consumer<String> reporter) {
+        if (reporter != null && (period.isNegative() || period.isZero())) {
+            throw new IllegalArgumentException("The period of the progress reports must be positive, not " + period);
+        }
 
-        for (int i = 0; i < MagicSquare.SQUARE_SIZE; ++i) {
-            sum = 0;
+        this.progressPeriod = period;
+        this.progressReporter = reporter;
+    }
 
-            for (int j = 0; j < MagicSquare.SQUARE_SIZE; ++j) {
-                sum += this.get(i, j, magicSquare);
+    /**
+     * Get the number of magic squares, counting the rotations and reflections of the generated ones
+     * in {@link Mode#ESSENTIALLY_DIFFERENT} mode.
+     *
+     * @return the number of magic squares
+     */
+    private long getSolutionCount() {
+        return this.mode == Mode.ESSENTIALLY_DIFFERENT
+                ? this.solutionCount * MagicSquare.SYMMETRY_COUNT
+                : this.solutionCount;
+    }
 
-                if (sum > MagicSquare.EXPECTED_SUM) {
-                    return false;
-                }
+    /**
+     * Generate all the correct magic squares through a branch and bound algorithm.
+     * The free values are walked straight from the bitset of used values of the board.
+     * When the position is the last empty cell of a line, its value is forced and is the only one tried.
+     * In {@link Mode#ESSENTIALLY_DIFFERENT} mode, the branches that are not in Frenicle standard form are cut
+     * as soon as the corners breaking it are filled.
+     *
+     * @param step number of filled positions, the next position being given by the fill order of the board
+     */
+    private void generateBranchAndBound(int step, Board board, SearchTask task) {
+        if (task.isStopped(step)) {
+            return;
+        }
 
-                if (this.get(i, j, magicSquare) == 0) {
-                    return true;
-                }
+        ++task.nodesByDepth[step];
+        int position = board.choosePosition(step);
+        int closedLine = board.closedLine(position);
+
+        if (closedLine >= 0) {
+            int value = board.expectedSum - board.lineSums[closedLine];
+
+            if (board.isFree(value)) {
+                this.tryValue(step, position, value, board, task);
+            } else {
+                ++task.prunes[board.lineCause(closedLine)];
             }
 
-            if (sum != MagicSquare.EXPECTED_SUM) {
-                return false;
+            return;
+        }
+
+        for (int word = 0; word < board.usedValues.length; ++word) {
+            long freeValues = ~board.usedValues[word] & board.valueMasks[word];
+
+            while (freeValues != 0) {
+                int value = (word << 6) + Long.numberOfTrailingZeros(freeValues) + 1;
+                freeValues &= freeValues - 1;
+
+                this.tryValue(step, position, value, board, task);
             }
         }
+    }
 
-        return true;
+    private void tryValue(int step, int position, int value, Board board, SearchTask task) {
+        board.place(position, value);
+        int rejection = this.rejection(position, board);
+
+        if (rejection < 0) {
+            if (step == board.cells.length - 1) {
+                //this.printMagicSquare(this.magicSquare);
+                task.addSolution(board);
+            } else {
+                this.generateBranchAndBound(step + 1, board, task);
+            }
+        } else {
+            ++task.prunes[rejection];
+        }
+
+        board.remove(position, value);
     }
 
-    private boolean areColsValid(List<Integer> magicSquare) {
-        int sum;
+    /**
+     * Check the board after a value has been placed at the given position.
+     *
+     * @return true if the board is valid and, in {@link Mode#ESSENTIALLY_DIFFERENT} mode, in Frenicle standard form
+     * so far, false otherwise
+     */
+    private boolean isAccepted(int position, Board board) {
+        return this.rejection(position, board) < 0;
+    }
 
-        for (int i = 0; i < MagicSquare.SQUARE_SIZE; ++i) {
-            sum = 0;
+    /**
+     * Check the board after a value has been placed at the given position, as {@link #isAccepted} does.
+     *
+     * @return the ordinal of the {@link SearchStats.Prune} rejecting the value, or -1 if it is accepted
+     */
+    private int rejection(int position, Board board) {
+        int violation = board.violation(position);
 
-            for (int j = 0; j < MagicSquare.SQUARE_SIZE; ++j) {
-                sum += this.get(j, i, magicSquare);
+        if (violation >= 0) {
+            return violation;
+        }
 
-                if (sum > MagicSquare.EXPECTED_SUM) {
-                    return false;
-                }
+        return this.mode == Mode.ALL || board.isFrenicleOrdered(position) ? -1 : SearchStats.Prune.SYMMETRY.ordinal();
+    }
 
-                if (this.get(j, i, magicSquare) == 0) {
-                    return true;
-                }
-            }
+    /**
+     * Generate all the correct magic squares with a fork/join search.
+     * The first {@link #splitDepth} positions are split into one task per accepted value, so that idle
+     * workers steal the remaining prefixes; the deeper positions are searched by {@link #generateBranchAndBound}.
+     * Each task collects its solutions on its own, and each split task folds the ones of its subtasks once they are done.
+     *
+     * @param parallelism number of worker threads
+     */
+    private void generateBranchAndBoundParallel(int parallelism) {
+        this.search(parallelism, Integer.MAX_VALUE, MagicSquare.IGNORE);
+    }
 
-            if (sum != MagicSquare.EXPECTED_SUM) {
-                return false;
-            }
+    /**
+     * Count the magic squares without keeping them, apart from a sample of the first ones.
+     * The search tasks only increment their own counter, so the memory used does not depend on the number
+     * of solutions.
+     *
+     * @param parallelism number of worker threads
+     * @param sampleSize number of solutions to keep, available through {@link #getSolutions}
+     * @return the number of magic squares, see {@link #getSolutionCount}
+     */
+    public long count(int parallelism, int sampleSize) {
+        this.search(parallelism, sampleSize, MagicSquare.IGNORE);
+
+        return this.getSolutionCount();
+    }
+
+    /**
+     * Count the magic squares, writing them to a file and keeping the progress of the search on disk, so that the
+     * search can be resumed after the JVM dies. Each task at the split depth is a prefix of the search : once its
+     * subtree is searched, its solutions are flushed to the solutions file and the prefix is recorded as completed
+     * with its count. A run in a directory holding the checkpoint of the same search skips the completed prefixes.
+     *
+     * @param parallelism number of worker threads
+     * @param directory directory of the checkpoint and solutions files, see {@link SearchCheckpoint}
+     * @return the number of magic squares, including the ones of the previous runs, see {@link #getSolutionCount}
+     */
+    public long countWithCheckpoint(int parallelism, Path directory) {
+        try (SearchCheckpoint checkpoint = SearchCheckpoint.open(directory, this.describe())) {
+            this.checkpoint = checkpoint;
+            this.search(parallelism, 0, MagicSquare.IGNORE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            this.checkpoint = null;
         }
 
-        return true;
+        return this.getSolutionCount();
+    }
+
+    /**
+     * @return the parameters deciding the prefixes of the search and their solutions
+     */
+    private String describe() {
+        return "order=" + this.squareSize + " mode=" + this.mode + " fill-order=" + this.fillOrder
+                + " split-depth=" + this.splitDepth;
     }
 
-    private boolean isFirstDiagValid(List<Integer> magicSquare) {
-        int sum = 0;
+    /**
+     * Estimate the number of nodes and magic squares of the search of the given order, in {@link Mode#ALL} mode,
+     * from random probes down the tree on every processor.
+     *
+     * @see #estimate(int, int, long)
+     */
+    public static SearchEstimate estimate(int order, int samples) {
+        return new MagicSquare(order).estimate(samples, Runtime.getRuntime().availableProcessors(), System.nanoTime());
+    }
 
-        for (int i = 0; i < MagicSquare.SQUARE_SIZE; ++i) {
-            sum += this.get(i, i, magicSquare);
+    /**
+     * Estimate the number of nodes and magic squares of the search, without running it, from random probes down
+     * the tree of {@link #generateBranchAndBound} : the probes fill the positions in the same order and reject the
+     * same values, see {@link SearchEstimate}. The probes are split into fork/join tasks, each drawing from its own
+     * stream split from the seed, so that the estimate only depends on the seed whatever the number of threads.
+     *
+     * @param samples number of probes
+     * @param parallelism number of worker threads
+     * @param seed seed of the random probes
+     * @return the estimates, with their confidence intervals
+     */
+    public SearchEstimate estimate(int samples, int parallelism, long seed) {
+        if (samples < 1) {
+            throw new IllegalArgumentException("The estimate needs at least one probe, got " + samples);
+        }
 
-            if (sum > MagicSquare.EXPECTED_SUM) {
-                return false;
-            }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        EstimateTask root = new EstimateTask(samples, new SplittableRandom(seed));
 
-            if (this.get(i, i, magicSquare) == 0) {
-                return true;
-            }
+        try {
+            pool.invoke(root);
+        } finally {
+            pool.shutdown();
         }
 
-        return sum == MagicSquare.EXPECTED_SUM;
+        return root.estimate;
     }
 
-    private boolean isSecondDiagValid(List<Integer> magicSquare) {
-        int sum = 0;
+    /**
+     * Descend a random branch of the search tree, from an empty board, and add its estimates.
+     *
+     * @param accepted buffer for the values accepted at a position
+     */
+    private void probe(SplittableRandom random, int[] accepted, SearchEstimate estimate) {
+        Board board = new Board(this.squareSize, this.fillOrder);
+        int symmetries = this.mode == Mode.ESSENTIALLY_DIFFERENT ? MagicSquare.SYMMETRY_COUNT : 1;
+        // Number of nodes of the depth of the probe that the probe stands for
+        double weight = 1;
+        double nodes = 0;
+
+        for (int step = 0; step < board.cells.length; ++step) {
+            nodes += weight;
+            int position = board.choosePosition(step);
+            int count = 0;
+
+            for (int value = board.nextCandidate(position, 0); value != 0; value = board.nextCandidate(position, value)) {
+                board.place(position, value);
+                if (this.isAccepted(position, board)) {
+                    accepted[count++] = value;
+                }
 
-        for (int i = 0; i < MagicSquare.SQUARE_SIZE; ++i) {
-            sum += this.get(MagicSquare.SQUARE_SIZE - 1 - i, i, magicSquare);
+                board.remove(position, value);
+            }
 
-            if (sum > MagicSquare.EXPECTED_SUM) {
-                return false;
+            if (count == 0) {
+                break;
             }
 
-            if (this.get(MagicSquare.SQUARE_SIZE - 1 - i, i, magicSquare) == 0) {
-                return true;
+            weight *= count;
+
+            if (step == board.cells.length - 1) {
+                estimate.add(nodes, weight * symmetries);
+                return;
             }
+
+            board.place(position, accepted[random.nextInt(count)]);
         }
 
-        return sum == MagicSquare.EXPECTED_SUM;
+        estimate.add(nodes, 0);
     }
 
     /**
-     * Check if the magic square is complete; all cells are fill by a number.
+     * Generate all the magic squares of the given order, handing each one to the sink as soon as it is found.
+     * Nothing is kept, so the memory used does not depend on the number of solutions.
      *
-     * @return true if complete, false otherwise
+     * @see #enumerate(int, Mode, int, Consumer)
      */
-    private boolean isComplete(List<Integer> magicSquare) {
-        for (Integer aMagicSquare : magicSquare) {
-            if (aMagicSquare == 0) {
-                return false;
-            }
-        }
+    public static long enumerate(int order, Consumer<int[]> sink) {
+        return MagicSquare.enumerate(order, Mode.ALL, Runtime.getRuntime().availableProcessors(), sink);
+    }
 
-        return true;
+    /**
+     * Generate the magic squares of the given order, handing each one to the sink as soon as it is found.
+     * Nothing is kept, so the memory used does not depend on the number of solutions.
+     *
+     * The sink is called from the worker threads, possibly concurrently. It gets the cells of the board of its
+     * worker, in row-major order, which are only valid during the call and must not be modified :
+     * a sink keeping a solution has to copy it.
+     *
+     * @param order order of the magic squares
+     * @param mode the magic squares to generate
+     * @param parallelism number of worker threads
+     * @param sink consumer of the solutions
+     * @return the number of generated magic squares
+     */
+    public static long enumerate(int order, Mode mode, int parallelism, Consumer<int[]> sink) {
+        MagicSquare magic = new MagicSquare(order, mode);
+        magic.search(parallelism, 0, sink);
+
+        return magic.solutionCount;
     }
 
-    private int get(int i, int j, List<Integer> magicSquare) {
-        return magicSquare.get(i * MagicSquare.SQUARE_SIZE + j);
+    /**
+     * @see #findAny(int, Mode, int)
+     */
+    public static int[] findAny(int order) {
+        return MagicSquare.findAny(order, Mode.ALL, Runtime.getRuntime().availableProcessors());
     }
 
     /**
-     * Get all the correct magic square solutions generated with {@link #generateBranchAndBound}.
+     * Find a magic square of the given order, whichever is found first by the workers.
+     * All the workers stop as soon as one of them finds a solution.
      *
-     * @return the solutions
+     * @param order order of the magic square
+     * @param mode the magic squares to generate
+     * @param parallelism number of worker threads
+     * @return the cells of the magic square in row-major order, or null if there is none
      */
-    private List<List<Integer>> getSolutions() {
-        return this.solutions;
+    public static int[] findAny(int order, Mode mode, int parallelism) {
+        return new MagicSquare(order, mode).searchFirst(parallelism, false);
     }
 
     /**
-     * Generate all the correct magic squares through a branch and bound algorithm.
+     * @see #findFirst(int, Mode, int)
+     */
+    public static int[] findFirst(int order) {
+        return MagicSquare.findFirst(order, Mode.ALL, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Find the lexicographically smallest magic square of the given order, its cells being compared in row-major
+     * order. The result does not depend on the scheduling of the workers.
      *
-     * @param position position in the square
+     * The positions are filled in row-major order with increasing values, whatever the default fill order, so each
+     * task stops at its first solution, and the tasks whose prefix is greater than the best solution found so far
+     * stop too.
+     *
+     * @param order order of the magic square
+     * @param mode the magic squares to generate
+     * @param parallelism number of worker threads
+     * @return the cells of the magic square in row-major order, or null if there is none
      */
-    private void generateBranchAndBound(int position, List<Integer> magicSquare,  boolean[] usedValues) {
-        for (int i = 0; i < usedValues.length; ++i) {
+    public static int[] findFirst(int order, Mode mode, int parallelism) {
+        return new MagicSquare(order, mode, MagicSquare.DEFAULT_SPLIT_DEPTH, FillOrder.ROW_MAJOR).searchFirst(parallelism, true);
+    }
 
-            if (usedValues[i]) {
-                continue;
-            }
+    private int[] searchFirst(int parallelism, boolean lexicographic) {
+        if (lexicographic && this.fillOrder != FillOrder.ROW_MAJOR) {
+            throw new IllegalStateException("The lexicographically smallest magic square needs the row-major fill order, got " + this.fillOrder);
+        }
 
-            magicSquare.set(position, i + 1);
-            usedValues[i] = true;
+        if (lexicographic && this.engine != Engine.BRANCH_AND_BOUND) {
+            throw new IllegalStateException("The lexicographically smallest magic square needs the branch and bound engine, got " + this.engine);
+        }
 
-            if (this.isValid(magicSquare)) {
-                if (this.isComplete(magicSquare)) {
-                    //this.printMagicSquare(this.magicSquare);
-                    synchronized(this.solutions) {
-                        this.solutions.add(new ArrayList<>(magicSquare));
-                    }
-                } else {
-                    this.generateBranchAndBound(position + 1, magicSquare, usedValues);
-                }
-            }
+        this.stopAtFirst = true;
+        this.lexicographic = lexicographic;
+        this.search(parallelism, 0, MagicSquare.IGNORE);
+
+        return this.firstSolution.get();
+    }
+
+    /**
+     * Offer a solution as the first one, cancelling the search unless the smallest one is looked for.
+     */
+    private void offerFirstSolution(int[] cells) {
+        int[] solution = cells.clone();
+
+        if (!this.lexicographic) {
+            this.firstSolution.compareAndSet(null, solution);
+            this.cancelled = true;
+            return;
+        }
+
+        int[] best;
+        do {
+            best = this.firstSolution.get();
+        } while ((best == null || MagicSquare.compare(solution, best, solution.length) < 0)
+                && !this.firstSolution.compareAndSet(best, solution));
+    }
 
-            magicSquare.set(position, 0);
-            usedValues[i] = false;
+    /**
+     * Check whether the search below the filled positions can still give the first solution.
+     *
+     * @param length number of filled positions
+     * @return true if the search is cancelled or if the filled positions are greater than the ones of the best
+     * solution found so far, false otherwise
+     */
+    private boolean isBeaten(int[] cells, int length) {
+        if (this.cancelled) {
+            return true;
+        }
+
+        int[] best = this.lexicographic ? this.firstSolution.get() : null;
+
+        return best != null && MagicSquare.compare(cells, best, length) > 0;
+    }
+
+    /**
+     * Compare the first cells of two squares lexicographically.
+     */
+    private static int compare(int[] cells, int[] otherCells, int length) {
+        for (int i = 0; i < length; ++i) {
+            if (cells[i] != otherCells[i]) {
+                return Integer.compare(cells[i], otherCells[i]);
+            }
         }
+
+        return 0;
+    }
+
+    /**
+     * @see #magicSquares(int, Mode)
+     */
+    public static Stream<int[]> magicSquares(int order) {
+        return MagicSquare.magicSquares(order, Mode.ALL);
     }
 
-    private void generateBranchAndBoundParallel() {
-        IntStream.range(0, SQUARE_SIZE*SQUARE_SIZE).parallel().forEach(i -> {
+    /**
+     * Get a lazy stream of the magic squares of the given order, each one being a new array of its cells in
+     * row-major order. The branch and bound search runs as the stream is consumed, so a short-circuiting
+     * operation such as {@link Stream#limit} stops it, and a parallel stream splits it into unexplored subtrees.
+     * The order of the squares is not specified.
+     *
+     * @param order order of the magic squares
+     * @param mode the magic squares to generate
+     * @return the stream of magic squares
+     */
+    public static Stream<int[]> magicSquares(int order, Mode mode) {
+        MagicSquare magic = new MagicSquare(order, mode);
+
+        return StreamSupport.stream(magic.new SearchSpliterator(new Board(order, magic.fillOrder), 0, 0, Integer.MAX_VALUE, Long.MAX_VALUE), false);
+    }
+
+    /**
+     * @param keptSolutions maximum number of solutions kept
+     * @param sink consumer of the cells of each solution, see {@link #enumerate(int, Mode, int, Consumer)}
+     */
+    private void search(int parallelism, int keptSolutions, Consumer<int[]> sink) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        this.progress = new SearchProgress();
+        SearchTask root = new SearchTask(0, new Board(this.squareSize, this.fillOrder), keptSolutions, sink);
+        ScheduledExecutorService reporter = this.startProgressReporter(this.progress);
+        SearchEvents.searchStarted(this.progress);
 
-            List<Integer> magicSquare = new ArrayList<>();
-            for (int j = 0; j < MagicSquare.SQUARE_SIZE * MagicSquare.SQUARE_SIZE; ++j) {
-                magicSquare.add(0);
+        try {
+            pool.invoke(root);
+        } finally {
+            pool.shutdown();
+            SearchEvents.searchEnded(this.progress);
+
+            if (reporter != null) {
+                reporter.shutdownNow();
             }
+        }
 
-            boolean[] usedValues = new boolean[16];
-            usedValues[i] = true;
+        this.solutionCount = root.solutionCount + (this.checkpoint != null ? this.checkpoint.getResumedCount() : 0);
+        for (List<Integer> solution : root.solutions) {
+            if (this.solutions.size() >= keptSolutions) {
+                break;
+            }
 
-            magicSquare.set(0, i + 1);
+            this.solutions.add(solution);
+        }
 
-            generateBranchAndBound(1, magicSquare, usedValues);
-        });
+        this.stats = new SearchStats(this.squareSize * this.squareSize);
+        root.collectStats(this.stats);
     }
 
     /**
-     * Print the magic square.
-     *  
-     * @param magicSquare
+     * Start reporting the progress of a search, see {@link #reportProgress}.
+     *
+     * @return the executor of the reports, to shut down once the search is over, or null if there are no reports
      */
-    public static void printMagicSquare(List<Integer> magicSquare) {
-        String str = "";
+    private ScheduledExecutorService startProgressReporter(SearchProgress progress) {
+        if (this.progressReporter == null) {
+            return null;
+        }
 
-        for (int i = 0; i < SQUARE_SIZE; i++) {
-            str += "----";
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "magic-square-progress");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        Consumer<String> consumer = this.progressReporter;
+        long period = this.progressPeriod.toNanos();
+        reporter.scheduleAtFixedRate(() -> consumer.accept(progress.toString()), period, period, TimeUnit.NANOSECONDS);
+
+        return reporter;
+    }
+
+    /**
+     * Check if the cells form a magic square of the given order, following the same rules as the search :
+     * the values 1 to order^2 each appear once, and each rows, cols, diagonals sums are equal.
+     *
+     * @param cells the cells of the square, in row-major order
+     * @param order order of the square
+     * @return true if magic, false otherwise
+     */
+    public static boolean isMagic(int[] cells, int order) {
+        if (order < 1 || cells.length != order * order) {
+            return false;
         }
 
-        str += "\n|";
-        for (int i = 0; i < magicSquare.size(); i++) {
-            if(i%SQUARE_SIZE == 0 && i!=0) {
-                str += "\n|";
+        Board board = new Board(order);
+        for (int position = 0; position < cells.length; ++position) {
+            if (!board.isFree(cells[position])) {
+                return false;
+            }
+
+            board.place(position, cells[position]);
+
+            if (!board.isValid(position)) {
+                return false;
             }
-            str += magicSquare.get(i) + "\t";
         }
 
-        System.out.println(str);
+        return true;
     }
 
-    public static void main(String[] args) {
-        MagicSquare magic = new MagicSquare();
-        long time = System.nanoTime();
-        
-        magic.generateBranchAndBoundParallel();
+    private static List<Integer> toList(int[] cells) {
+        List<Integer> magicSquare = new ArrayList<>(cells.length);
+        for (int cell : cells) {
+            magicSquare.add(cell);
+        }
 
-        System.out.println("Time : " + (System.nanoTime() - time) / 1000000000.0 + " seconds");
-        System.out.println("Number of magicSquare : " + magic.getSolutions().size());
-        System.out.println("First solution : ");
-        
-        printMagicSquare(magic.getSolutions().get(0));
+        return magicSquare;
+    }
+
+    /**
+     * Print the magic square.
+     *
+     * @param cells the cells of the magic square, in row-major order
+     */
+    public static void printMagicSquare(int[] cells) {
+        printMagicSquare(MagicSquare.toList(cells));
+    }
+
+    /**
+     * Print the magic square.
+     *  
+     * @param magicSquare
+     */
+    public static void printMagicSquare(List<Integer> magicSquare) {
+        System.out.println(formatMagicSquare(magicSquare.size(), magicSquare::get));
+    }
+
+    /**
+     * Format a magic square as printed by {@link #printMagicSquare}.
+     *
+     * @param cellCount number of cells of the magic square
+     * @param cells the value of each cell, by position in row-major order
+     */
+    static String formatMagicSquare(int cellCount, IntUnaryOperator cells) {
+        int squareSize = (int) Math.round(Math.sqrt(cellCount));
+        String str = "";
+
+        for (int i = 0; i < squareSize; i++) {
+            str += "----";
+        }
+
+        str += "\n|";
+        for (int i = 0; i < cellCount; i++) {
+            if(i%squareSize == 0 && i!=0) {
+                str += "\n|";
+            }
+            str += cells.applyAsInt(i) + "\t";
+        }
+
+        return str;
+    }
+
+    /**
+     * Read a command line option given as --name=value.
+     *
+     * @return the value of the option, or the default value if it is absent
+     */
+    private static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Read a command line flag given as --name.
+     *
+     * @return true if the flag is present, false otherwise
+     */
+    private static boolean flag(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals("--" + name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public static void main(String[] args) {
+        int squareSize = Integer.parseInt(option(args, "order", "4"));
+        Mode mode = Mode.valueOf(option(args, "mode", Mode.ALL.name()));
+        int splitDepth = Integer.parseInt(option(args, "split-depth", String.valueOf(DEFAULT_SPLIT_DEPTH)));
+        int parallelism = Integer.parseInt(option(args, "threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        String defaultFillOrder = flag(args, "find-first") ? FillOrder.ROW_MAJOR.name() : FillOrder.MOST_CONSTRAINED.name();
+        FillOrder fillOrder = FillOrder.valueOf(option(args, "fill-order", defaultFillOrder));
+        Engine engine = Engine.valueOf(option(args, "engine", Engine.BRANCH_AND_BOUND.name()));
+        MagicSquare magic = new MagicSquare(squareSize, mode, splitDepth, fillOrder, engine);
+        long time = System.nanoTime();
+        
+        if (flag(args, "construct")) {
+            int[] cells = MagicSquareConstruction.construct(squareSize);
+
+            System.out.println("Time : " + (System.nanoTime() - time) / 1000000000.0 + " seconds");
+            System.out.println("Valid : " + isMagic(cells, squareSize));
+            if (squareSize <= MagicSquare.MAX_PRINTED_ORDER) {
+                printMagicSquare(cells);
+            }
+
+            return;
+        }
+
+        if (!option(args, "read", "").isEmpty()) {
+            try (MappedSolutionFile file = MappedSolutionFile.open(Path.of(option(args, "read", "")))) {
+                System.out.println("Time : " + (System.nanoTime() - time) / 1000000000.0 + " seconds");
+                System.out.println("Number of magicSquare : " + file.size());
+                if (file.size() > 0) {
+                    System.out.println("First solution : ");
+                    file.view(0).print();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return;
+        }
+
+        if (!option(args, "estimate", "").isEmpty()) {
+            long seed = Long.parseLong(option(args, "seed", String.valueOf(System.nanoTime())));
+            SearchEstimate estimate = magic.estimate(Integer.parseInt(option(args, "estimate", "")), parallelism, seed);
+
+            System.out.println("Time : " + (System.nanoTime() - time) / 1000000000.0 + " seconds");
+            System.out.println(estimate);
+
+            return;
+        }
+
+        if (flag(args, "find-any") || flag(args, "find-first")) {
+            int[] cells = flag(args, "find-any") ? magic.searchFirst(parallelism, false) : magic.searchFirst(parallelism, true);
+
+            System.out.println("Time : " + (System.nanoTime() - time) / 1000000000.0 + " seconds");
+            System.out.println(magic.getStats());
+            if (cells != null) {
+                printMagicSquare(cells);
+            }
+
+            return;
+        }
+
+        if (flag(args, "line-partitions") || flag(args, "meet-in-the-middle")) {
+            AtomicReference<int[]> first = new AtomicReference<>();
+            Consumer<int[]> keepFirst = cells -> {
+                if (first.get() == null) {
+                    first.compareAndSet(null, cells.clone());
+                }
+            };
+            long count = flag(args, "line-partitions")
+                    ? LinePartitionSearch.enumerate(squareSize, parallelism, keepFirst)
+                    : MeetInTheMiddleSearch.enumerate(squareSize, Long.parseLong(option(args, "memory-budget",
+                            String.valueOf(Runtime.getRuntime().maxMemory() / 4))), keepFirst);
+
+            System.out.println("Time : " + (System.nanoTime() - time) / 1000000000.0 + " seconds");
+            System.out.println("Number of magicSquare : " + count);
+            if (first.get() != null) {
+                System.out.println("First solution : ");
+                printMagicSquare(first.get());
+            }
+
+            return;
+        }
+
+        if (!option(args, "progress", "").isEmpty()) {
+            magic.reportProgress(Duration.ofSeconds(Long.parseLong(option(args, "progress", ""))), System.err::println);
+        }
+
+        if (flag(args, "print-all")) {
+            magic.search(parallelism, 0, MagicSquare::printMagicSquare);
+        } else if (!option(args, "output", "").isEmpty()) {
+            SolutionFile.Encoding encoding = SolutionFile.Encoding.valueOf(option(args, "encoding", SolutionFile.Encoding.RANK.name()));
+
+            try (SolutionFile.Writer writer = SolutionFile.create(Path.of(option(args, "output", "")), squareSize, encoding, flag(args, "index"))) {
+                magic.search(parallelism, 0, writer::write);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else if (!option(args, "checkpoint", "").isEmpty()) {
+            magic.countWithCheckpoint(parallelism, Path.of(option(args, "checkpoint", "")));
+        } else if (flag(args, "count-only")) {
+            magic.count(parallelism, Integer.parseInt(option(args, "sample", "1")));
+        } else {
+            magic.generateBranchAndBoundParallel(parallelism);
+        }
+
+        System.out.println("Time : " + (System.nanoTime() - time) / 1000000000.0 + " seconds");
+        System.out.println("Number of magicSquare : " + magic.getSolutionCount());
+        if (mode == Mode.ESSENTIALLY_DIFFERENT) {
+            System.out.println("Number of essentially different magicSquare : " + magic.solutionCount);
+        }
+        System.out.println(magic.getStats());
+        if (magic.getSolutions().isEmpty()) {
+            return;
+        }
+
+        System.out.println("First solution : ");
+        
+        printMagicSquare(magic.getSolutions().get(0));
+    }
+
+    /**
+     * Search of the subtree below a prefix of the board, the first {@link #step} positions of its fill order being filled.
+     * The task owns its board, its solution counter and the solutions it keeps, so the workers never share them
+     * while searching. A split task folds its subtasks into its own results once they are done and drops them, so that
+     * the memory used does not grow with the number of tasks.
+     */
+    private final class SearchTask extends RecursiveAction {
+
+        private final int step;
+        private final Board board;
+        /**
+         * Maximum number of solutions kept by the task, the first ones it finds.
+         */
+        private final int keptSolutions;
+        private final Consumer<int[]> sink;
+        private final List<List<Integer>> solutions = new ArrayList<>();
+        private long solutionCount;
+        /**
+         * Subtasks of a split task, dropped once they are folded into it, see {@link #fold}.
+         */
+        private final List<SearchTask> subtasks = new ArrayList<>();
+        private long checkedNodes;
+        private boolean stopped;
+        /**
+         * Solutions of the prefix of the task, written to the checkpoint as they are found, or null.
+         */
+        private SearchCheckpoint.Part checkpointPart;
+        /**
+         * Counters of the task, see {@link SearchStats}.
+         */
+        private final long[] nodesByDepth;
+        private final long[] prunes = new long[SearchStats.Prune.values().length];
+        /**
+         * Counters of the folded subtasks, or null.
+         */
+        private SearchStats subtaskStats;
+        /**
+         * Values filled before the task and time spent searching below them, for the tasks at the split depth.
+         */
+        private String prefix;
+        private long nanos;
+        /**
+         * Live counters of the thread running the task, and the part of the counters of the task already added to them.
+         */
+        private SearchProgress.Worker worker;
+        private long publishedNodes;
+        private long publishedSolutions;
+        /**
+         * Part of the search tree below the task, see {@link SearchProgress}.
+         */
+        private double part = 1;
+
+        private SearchTask(int step, Board board, int keptSolutions, Consumer<int[]> sink) {
+            this.step = step;
+            this.board = board;
+            this.keptSolutions = keptSolutions;
+            this.sink = sink;
+            this.nodesByDepth = new long[board.cells.length];
+
+            if (this.isLeaf()) {
+                MagicSquare.this.progress.addTask();
+            }
+        }
+
+        /**
+         * @return true if the task searches its subtree on its own, false if it is split into subtasks
+         */
+        private boolean isLeaf() {
+            // The last position is never split, so that the solutions are only found below the split depth
+            return this.step >= Math.min(MagicSquare.this.splitDepth, this.board.cells.length - 1);
+        }
+
+        private void addSolution(Board board) {
+            ++this.solutionCount;
+            this.sink.accept(board.cells);
+
+            if (this.checkpointPart != null) {
+                this.checkpointPart.add(board.cells);
+            }
+
+            if (this.solutions.size() < this.keptSolutions) {
+                this.solutions.add(MagicSquare.toList(board.cells));
+            }
+
+            if (MagicSquare.this.stopAtFirst) {
+                MagicSquare.this.offerFirstSolution(board.cells);
+                this.stopped = true;
+            }
+
+            SearchEvents.solutionFound(board.cells);
+        }
+
+        /**
+         * Check whether the task has to stop, looking at the shared state of the search once every
+         * {@link #CANCELLATION_CHECK_MASK} + 1 nodes only, when the task also publishes its progress.
+         *
+         * @param step number of filled positions
+         * @return true if the task has to stop, false otherwise
+         */
+        private boolean isStopped(int step) {
+            if ((++this.checkedNodes & CANCELLATION_CHECK_MASK) == 0) {
+                this.publish();
+
+                if (!this.stopped && MagicSquare.this.stopAtFirst) {
+                    this.stopped = MagicSquare.this.isBeaten(this.board.cells, step);
+                }
+            }
+
+            return this.stopped;
+        }
+
+        /**
+         * Add the nodes and solutions of the task since the last call to the live counters of its thread.
+         */
+        private void publish() {
+            this.worker.add(this.checkedNodes - this.publishedNodes, this.solutionCount - this.publishedSolutions);
+            this.publishedNodes = this.checkedNodes;
+            this.publishedSolutions = this.solutionCount;
+        }
+
+        /**
+         * @return the values of the filled positions, in fill order
+         */
+        private String prefix() {
+            int[] values = new int[this.step];
+            for (int k = 0; k < this.step; ++k) {
+                values[k] = this.board.cells[this.board.positionAt(k)];
+            }
+
+            return SearchCheckpoint.prefix(values, this.step);
+        }
+
+        /**
+         * Add the counters of this task, including the ones of its folded subtasks.
+         */
+        private void collectStats(SearchStats stats) {
+            stats.add(this.nodesByDepth, this.prunes);
+
+            if (this.prefix != null) {
+                stats.addTask(this.prefix, this.nanos);
+            }
+
+            if (this.subtaskStats != null) {
+                stats.add(this.subtaskStats);
+            }
+        }
+
+        /**
+         * Add the solutions and the counters of a completed subtask to this task, so that the subtask and its board
+         * can be dropped. The subtasks are folded in the order of their prefixes, which keeps the first solutions.
+         */
+        private void fold(SearchTask subtask) {
+            this.solutionCount += subtask.solutionCount;
+
+            for (List<Integer> solution : subtask.solutions) {
+                if (this.solutions.size() >= this.keptSolutions) {
+                    break;
+                }
+
+                this.solutions.add(solution);
+            }
+
+            if (this.subtaskStats == null) {
+                this.subtaskStats = new SearchStats(this.nodesByDepth.length);
+            }
+
+            subtask.collectStats(this.subtaskStats);
+        }
+
+        @Override
+        protected void compute() {
+            if (MagicSquare.this.stopAtFirst && MagicSquare.this.isBeaten(this.board.cells, this.step)) {
+                return;
+            }
+
+            if (this.isLeaf()) {
+                SearchCheckpoint checkpoint = MagicSquare.this.checkpoint;
+                String prefix = this.prefix();
+
+                if (checkpoint != null && checkpoint.isCompleted(prefix)) {
+                    MagicSquare.this.progress.worker().complete(1, this.part);
+                    return;
+                }
+
+                if (checkpoint != null) {
+                    this.checkpointPart = checkpoint.start(prefix);
+                }
+
+                SearchEvents.Task event = SearchEvents.taskStarted();
+                this.worker = MagicSquare.this.progress.worker();
+                long start = System.nanoTime();
+
+                if (MagicSquare.this.engine == Engine.DANCING_LINKS) {
+                    new DancingLinks(this.board, this).search(this.step);
+                } else {
+                    MagicSquare.this.generateBranchAndBound(this.step, this.board, this);
+                }
+
+                this.prefix = prefix;
+                this.nanos = System.nanoTime() - start;
+                this.publish();
+                this.worker.complete(1, this.part);
+                SearchEvents.taskEnded(event, prefix, this.checkedNodes, this.solutionCount);
+
+                if (this.checkpointPart != null) {
+                    this.checkpointPart.complete();
+                    this.checkpointPart = null;
+                }
+
+                return;
+            }
+
+            ++this.nodesByDepth[this.step];
+            int position = this.board.choosePosition(this.step);
+
+            for (int value = this.board.nextCandidate(position, 0); value != 0; value = this.board.nextCandidate(position, value)) {
+                this.board.place(position, value);
+                int rejection = MagicSquare.this.rejection(position, this.board);
+
+                if (rejection >= 0) {
+                    ++this.prunes[rejection];
+                } else if (this.step == this.board.cells.length - 1) {
+                    this.addSolution(this.board);
+                    if (this.stopped) {
+                        this.board.remove(position, value);
+                        break;
+                    }
+                } else {
+                    this.subtasks.add(new SearchTask(this.step + 1, new Board(this.board), this.keptSolutions, this.sink));
+                }
+
+                this.board.remove(position, value);
+            }
+
+            if (this.subtasks.isEmpty()) {
+                MagicSquare.this.progress.worker().complete(0, this.part);
+            }
+
+            for (SearchTask subtask : this.subtasks) {
+                subtask.part = this.part / this.subtasks.size();
+            }
+
+            ForkJoinTask.invokeAll(this.subtasks);
+
+            for (SearchTask subtask : this.subtasks) {
+                this.fold(subtask);
+            }
+
+            this.subtasks.clear();
+        }
+    }
+
+    /**
+     * Probes of an estimate, halved into subtasks down to {@link #PROBES_PER_TASK} probes. Each subtask draws from a
+     * stream split from the stream of its parent when it is created.
+     */
+    private final class EstimateTask extends RecursiveAction {
+
+        private final int samples;
+        private final SplittableRandom random;
+        private final SearchEstimate estimate = new SearchEstimate();
+
+        private EstimateTask(int samples, SplittableRandom random) {
+            this.samples = samples;
+            this.random = random;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.samples <= MagicSquare.PROBES_PER_TASK) {
+                int[] accepted = new int[MagicSquare.this.squareSize * MagicSquare.this.squareSize];
+                for (int sample = 0; sample < this.samples; ++sample) {
+                    MagicSquare.this.probe(this.random, accepted, this.estimate);
+                }
+
+                return;
+            }
+
+            EstimateTask first = new EstimateTask(this.samples / 2, this.random.split());
+            EstimateTask second = new EstimateTask(this.samples - this.samples / 2, this.random.split());
+            ForkJoinTask.invokeAll(first, second);
+
+            this.estimate.add(first.estimate);
+            this.estimate.add(second.estimate);
+        }
+    }
+
+    /**
+     * Exact cover search of the subtree below a prefix of the board, with Knuth's Algorithm X over Dancing Links.
+     * Each empty cell and each free value is a column to cover exactly once, and each pair of an empty cell and a free
+     * value is a row covering both. The rows are chosen from the column with the fewest rows, apart from the cells
+     * closing a line, which are chosen first and only take their forced value.
+     *
+     * The links are kept in flat int arrays, node 0 being the root, then the column headers, then two nodes per row.
+     * The board follows the chosen rows, so that the line sums and the Frenicle order are checked by
+     * {@link #isAccepted} as side conditions.
+     */
+    private final class DancingLinks {
+
+        private final Board board;
+        private final SearchTask task;
+        private final int[] left;
+        private final int[] right;
+        private final int[] up;
+        private final int[] down;
+        /**
+         * Column header of each node.
+         */
+        private final int[] columns;
+        /**
+         * Number of rows of each column header.
+         */
+        private final int[] sizes;
+        /**
+         * Cell and value of the row of each node.
+         */
+        private final int[] positions;
+        private final int[] values;
+        /**
+         * Cell of each column header, or -1 for the columns of the values.
+         */
+        private final int[] columnPositions;
+
+        private DancingLinks(Board board, SearchTask task) {
+            this.board = board;
+            this.task = task;
+
+            List<Integer> emptyCells = new ArrayList<>();
+            for (int position = 0; position < board.cells.length; ++position) {
+                if (board.cells[position] == 0) {
+                    emptyCells.add(position);
+                }
+            }
+
+            List<Integer> freeValues = new ArrayList<>();
+            for (int value = 1; value <= board.cells.length; ++value) {
+                if (board.isFree(value)) {
+                    freeValues.add(value);
+                }
+            }
+
+            int headers = emptyCells.size() + freeValues.size();
+            int nodes = 1 + headers + 2 * emptyCells.size() * freeValues.size();
+            this.left = new int[nodes];
+            this.right = new int[nodes];
+            this.up = new int[nodes];
+            this.down = new int[nodes];
+            this.columns = new int[nodes];
+            this.sizes = new int[headers + 1];
+            this.positions = new int[nodes];
+            this.values = new int[nodes];
+            this.columnPositions = new int[headers + 1];
+
+            for (int header = 0; header <= headers; ++header) {
+                this.left[header] = header == 0 ? headers : header - 1;
+                this.right[header] = header == headers ? 0 : header + 1;
+                this.up[header] = header;
+                this.down[header] = header;
+                this.columns[header] = header;
+                this.columnPositions[header] = header >= 1 && header <= emptyCells.size() ? emptyCells.get(header - 1) : -1;
+            }
+
+            int node = headers + 1;
+            for (int cell = 0; cell < emptyCells.size(); ++cell) {
+                for (int value = 0; value < freeValues.size(); ++value) {
+                    int cellNode = node++;
+                    int valueNode = node++;
+
+                    this.appendRow(cellNode, 1 + cell, emptyCells.get(cell), freeValues.get(value));
+                    this.appendRow(valueNode, 1 + emptyCells.size() + value, emptyCells.get(cell), freeValues.get(value));
+                    this.left[cellNode] = valueNode;
+                    this.right[cellNode] = valueNode;
+                    this.left[valueNode] = cellNode;
+                    this.right[valueNode] = cellNode;
+                }
+            }
+        }
+
+        private void appendRow(int node, int column, int position, int value) {
+            this.columns[node] = column;
+            this.positions[node] = position;
+            this.values[node] = value;
+            this.up[node] = this.up[column];
+            this.down[node] = column;
+            this.down[this.up[column]] = node;
+            this.up[column] = node;
+            ++this.sizes[column];
+        }
+
+        /**
+         * @param step number of filled cells
+         */
+        private void search(int step) {
+            if (this.task.isStopped(step)) {
+                return;
+            }
+
+            if (this.right[0] == 0) {
+                this.task.addSolution(this.board);
+                return;
+            }
+
+            ++this.task.nodesByDepth[step];
+
+            int column = this.chooseColumn();
+            int closedLine = this.columnPositions[column] >= 0 ? this.board.closedLine(this.columnPositions[column]) : -1;
+            int forcedValue = closedLine >= 0 ? this.board.expectedSum - this.board.lineSums[closedLine] : 0;
+
+            this.cover(column);
+
+            for (int row = this.down[column]; row != column; row = this.down[row]) {
+                int position = this.positions[row];
+                int value = this.values[row];
+
+                if (closedLine >= 0 && value != forcedValue) {
+                    continue;
+                }
+
+                this.board.place(position, value);
+                int rejection = MagicSquare.this.rejection(position, this.board);
+
+                if (rejection >= 0) {
+                    ++this.task.prunes[rejection];
+                } else {
+                    for (int node = this.right[row]; node != row; node = this.right[node]) {
+                        this.cover(this.columns[node]);
+                    }
+
+                    this.search(step + 1);
+
+                    for (int node = this.left[row]; node != row; node = this.left[node]) {
+                        this.uncover(this.columns[node]);
+                    }
+                }
+
+                this.board.remove(position, value);
+            }
+
+            this.uncover(column);
+        }
+
+        /**
+         * @return the first column of a cell closing a line, or else the column with the fewest rows
+         */
+        private int chooseColumn() {
+            int best = this.right[0];
+
+            for (int column = this.right[0]; column != 0; column = this.right[column]) {
+                if (this.columnPositions[column] >= 0 && this.board.closedLine(this.columnPositions[column]) >= 0) {
+                    return column;
+                }
+
+                if (this.sizes[column] < this.sizes[best]) {
+                    best = column;
+                }
+            }
+
+            return best;
+        }
+
+        private void cover(int column) {
+            this.right[this.left[column]] = this.right[column];
+            this.left[this.right[column]] = this.left[column];
+
+            for (int row = this.down[column]; row != column; row = this.down[row]) {
+                for (int node = this.right[row]; node != row; node = this.right[node]) {
+                    this.down[this.up[node]] = this.down[node];
+                    this.up[this.down[node]] = this.up[node];
+                    --this.sizes[this.columns[node]];
+                }
+            }
+        }
+
+        private void uncover(int column) {
+            for (int row = this.up[column]; row != column; row = this.up[row]) {
+                for (int node = this.left[row]; node != row; node = this.left[node]) {
+                    ++this.sizes[this.columns[node]];
+                    this.down[this.up[node]] = node;
+                    this.up[this.down[node]] = node;
+                }
+            }
+
+            this.right[this.left[column]] = column;
+            this.left[this.right[column]] = column;
+        }
+    }
+
+    /**
+     * Iterative branch and bound search of the subtree below a prefix of the board, yielding one solution at a time.
+     * The search tries the same candidates as {@link #generateBranchAndBound} and keeps the last one tried at each
+     * position instead of the call stack.
+     *
+     * The spliterator owns the steps of the fill order from {@link #root}, the values at its root step being bounded.
+     * Splitting hands the upper half of the untried values of the shallowest step to a new spliterator. When the step
+     * being filled has a single value left, the spliterator descends into it and splits the next step, so that the
+     * tree keeps being split below a lone value, down to the step before the last. The size of the subtree is unknown,
+     * so its estimate is halved on each split, which lets a parallel stream stop splitting once there are a few
+     * spliterators per thread.
+     */
+    private final class SearchSpliterator implements Spliterator<int[]> {
+
+        private final Board board;
+        private final int root;
+        /**
+         * Value placed at each step before {@link #depth}, and last value tried at the step {@link #depth}.
+         */
+        private final int[] lastValues;
+        /**
+         * Greatest value to try at each step.
+         */
+        private final int[] bounds;
+        /**
+         * Step being filled, lower than {@link #root} once the subtree is exhausted.
+         */
+        private int depth;
+        private long estimatedSize;
+
+        /**
+         * @param board board with the steps before the root filled
+         * @param root first step to fill
+         * @param previous the values up to this one are not tried at the root step
+         * @param bound greatest value to try at the root step
+         * @param estimatedSize estimate of the number of solutions, see {@link #estimateSize}
+         */
+        private SearchSpliterator(Board board, int root, int previous, int bound, long estimatedSize) {
+            this.board = board;
+            this.estimatedSize = estimatedSize;
+            this.root = root;
+            this.lastValues = new int[board.cells.length];
+            this.bounds = new int[board.cells.length];
+            this.depth = root;
+            this.lastValues[root] = previous;
+            this.bounds[root] = bound;
+            board.choosePosition(root);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super int[]> action) {
+            while (this.depth >= this.root && this.depth < this.board.cells.length) {
+                int position = this.board.positionAt(this.depth);
+                int value = this.board.nextCandidate(position, this.lastValues[this.depth]);
+
+                if (value == 0 || value > this.bounds[this.depth]) {
+                    if (--this.depth >= this.root) {
+                        this.board.remove(this.board.positionAt(this.depth), this.lastValues[this.depth]);
+                    }
+
+                    continue;
+                }
+
+                this.lastValues[this.depth] = value;
+                this.board.place(position, value);
+
+                if (!MagicSquare.this.isAccepted(position, this.board)) {
+                    this.board.remove(position, value);
+                } else if (this.depth == this.board.cells.length - 1) {
+                    action.accept(this.board.cells.clone());
+                    this.board.remove(position, value);
+
+                    return true;
+                } else {
+                    ++this.depth;
+                    this.lastValues[this.depth] = 0;
+                    this.bounds[this.depth] = Integer.MAX_VALUE;
+                    this.board.choosePosition(this.depth);
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        public Spliterator<int[]> trySplit() {
+            for (int step = this.root; step <= this.depth && step < this.board.cells.length; ++step) {
+                Board prefix = new Board(this.board);
+                for (int filled = this.depth - 1; filled >= step; --filled) {
+                    prefix.remove(prefix.positionAt(filled), this.lastValues[filled]);
+                }
+
+                int position = prefix.positionAt(step);
+                List<Integer> untried = new ArrayList<>();
+                for (int value = prefix.nextCandidate(position, this.lastValues[step]);
+                     value != 0 && value <= this.bounds[step];
+                     value = prefix.nextCandidate(position, value)) {
+                    untried.add(value);
+                }
+
+                if (untried.size() >= 2 || (untried.size() == 1 && step < this.depth)) {
+                    int split = untried.get(untried.size() / 2);
+                    this.estimatedSize >>>= 1;
+                    SearchSpliterator suffix = new SearchSpliterator(prefix, step, split - 1, this.bounds[step], this.estimatedSize);
+                    this.bounds[step] = split - 1;
+
+                    return suffix;
+                }
+
+                if (step == this.depth && untried.size() == 1 && step < this.board.cells.length - 1) {
+                    int value = untried.get(0);
+                    this.lastValues[step] = value;
+                    this.board.place(position, value);
+
+                    if (!MagicSquare.this.isAccepted(position, this.board)) {
+                        this.board.remove(position, value);
+                        return null;
+                    }
+
+                    ++this.depth;
+                    this.lastValues[this.depth] = 0;
+                    this.bounds[this.depth] = Integer.MAX_VALUE;
+                    this.board.choosePosition(this.depth);
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.estimatedSize;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.NONNULL | Spliterator.DISTINCT;
+        }
+    }
+
+    /**
+     * Count the magic squares with the plain recursive {@link #generateBranchAndBound} on the calling thread, without a
+     * pool nor split tasks, to measure it against the parallel search, see benchmark/MagicSquareBenchmark.
+     */
+    static long countSequential(int order) {
+        MagicSquare magic = new MagicSquare(order, Mode.ALL, 0);
+        magic.progress = new SearchProgress();
+        SearchTask task = magic.new SearchTask(0, new Board(order, magic.fillOrder), 0, MagicSquare.IGNORE);
+        task.worker = magic.progress.worker();
+        magic.generateBranchAndBound(0, task.board, task);
+
+        return task.solutionCount;
+    }
+
+    /**
+     * Check of a single node of the search over a board kept across calls, to measure it apart from the allocation of
+     * the board, see benchmark/MagicSquareBenchmark.
+     */
+    static final class NodeCheck {
+
+        private final MagicSquare search;
+        private final Board board;
+
+        /**
+         * @param cells cells of a magic square in row-major order, the first filled ones of which are placed
+         * @param filled number of cells placed before the checked node
+         */
+        NodeCheck(int[] cells, int order, int filled) {
+            this.search = new MagicSquare(order);
+            this.board = new Board(order, FillOrder.ROW_MAJOR);
+
+            for (int position = 0; position < filled; ++position) {
+                this.board.place(position, cells[position]);
+            }
+        }
+
+        /**
+         * Place a value, check the board as the search does at each node, and remove the value.
+         *
+         * @return the ordinal of the {@link SearchStats.Prune} rejecting the value, or -1 if it is accepted
+         */
+        int check(int position, int value) {
+            this.board.place(position, value);
+            int rejection = this.search.rejection(position, this.board);
+            this.board.remove(position, value);
+
+            return rejection;
+        }
+    }
+
+    /**
+     * State of a magic square being filled : the cells, the bitset of the used values,
+     * and the running sums and filled-cell counts of every line.
+     * Each search thread works on its own board.
+     */
+    private static final class Board {
+
+        private final int size;
+        private final int expectedSum;
+        /**
+         * Lines are indexed as rows (0 to size - 1), then columns (size to 2 * size - 1), then the two diagonals.
+         */
+        private final int firstDiag;
+        private final int secondDiag;
+        /**
+         * Values 1 to size^2 are stored in a bitset of longs, value v being the bit (v - 1) % 64 of the
+         * word (v - 1) / 64. A single long is enough up to the 8x8 square.
+         */
+        private final long[] valueMasks;
+        /**
+         * Pairs of positions (lower, higher) that must be increasing in the Frenicle standard form :
+         * the top left corner is the smallest corner, and its right neighbour is smaller than its bottom neighbour.
+         */
+        private final int[][] freniclePairs;
+        /**
+         * Position filled at each step of the search. The array is shared between the copies of a board for a
+         * static fill order, and written by {@link #choosePosition} for {@link FillOrder#MOST_CONSTRAINED}.
+         */
+        private final int[] fillOrder;
+        private final boolean dynamicOrder;
+        private final int[] cells;
+        private final long[] usedValues;
+        private final int[] lineSums;
+        private final int[] lineCounts;
+
+        private Board(int size) {
+            this(size, FillOrder.ROW_MAJOR);
+        }
+
+        private Board(int size, FillOrder fillOrder) {
+            this.size = size;
+            this.expectedSum = (int) ((size * ((long) size * size + 1)) / 2);
+            this.firstDiag = 2 * size;
+            this.secondDiag = 2 * size + 1;
+            this.valueMasks = Board.valueMasks(size * size);
+            this.freniclePairs = new int[][] {
+                    {0, size - 1},
+                    {0, size * (size - 1)},
+                    {0, size * size - 1},
+                    {1, size}
+            };
+            this.fillOrder = Board.fillOrder(size, fillOrder);
+            this.dynamicOrder = fillOrder == FillOrder.MOST_CONSTRAINED;
+            this.cells = new int[size * size];
+            this.usedValues = new long[this.valueMasks.length];
+            this.lineSums = new int[2 * size + 2];
+            this.lineCounts = new int[2 * size + 2];
+        }
+
+        /**
+         * Copy a board, sharing its immutable parts.
+         */
+        private Board(Board board) {
+            this.size = board.size;
+            this.expectedSum = board.expectedSum;
+            this.firstDiag = board.firstDiag;
+            this.secondDiag = board.secondDiag;
+            this.valueMasks = board.valueMasks;
+            this.freniclePairs = board.freniclePairs;
+            this.fillOrder = board.dynamicOrder ? board.fillOrder.clone() : board.fillOrder;
+            this.dynamicOrder = board.dynamicOrder;
+            this.cells = board.cells.clone();
+            this.usedValues = board.usedValues.clone();
+            this.lineSums = board.lineSums.clone();
+            this.lineCounts = board.lineCounts.clone();
+        }
+
+        private static long[] valueMasks(int valueCount) {
+            long[] masks = new long[(valueCount + 63) >>> 6];
+            for (int value = 0; value < valueCount; ++value) {
+                masks[value >>> 6] |= 1L << value;
+            }
+
+            return masks;
+        }
+
+        /**
+         * Compute the positions of a static fill order, step by step. The dynamic order starts as the row-major one
+         * and is overwritten as the steps are chosen.
+         */
+        private static int[] fillOrder(int size, FillOrder fillOrder) {
+            int[] positions = new int[size * size];
+
+            if (fillOrder != FillOrder.LINES_FIRST) {
+                for (int position = 0; position < positions.length; ++position) {
+                    positions[position] = position;
+                }
+
+                return positions;
+            }
+
+            int[] lines = new int[2 * size + 2];
+            lines[0] = 0;
+            lines[1] = size;
+            lines[2] = 2 * size;
+            lines[3] = 2 * size + 1;
+            for (int k = 1; k < size; ++k) {
+                lines[2 * k + 2] = k;
+                lines[2 * k + 3] = size + k;
+            }
+
+            boolean[] ordered = new boolean[positions.length];
+            int step = 0;
+            for (int line : lines) {
+                for (int k = 0; k < size; ++k) {
+                    int position = Board.linePosition(size, line, k);
+
+                    if (!ordered[position]) {
+                        ordered[position] = true;
+                        positions[step++] = position;
+                    }
+                }
+            }
+
+            return positions;
+        }
+
+        /**
+         * @return the position of the k-th cell of a line, the lines being indexed as in {@link #lineSums}
+         */
+        private static int linePosition(int size, int line, int k) {
+            if (line < size) {
+                return line * size + k;
+            }
+
+            if (line < 2 * size) {
+                return k * size + line - size;
+            }
+
+            return line == 2 * size ? k * size + k : k * size + size - 1 - k;
+        }
+
+        /**
+         * Get the position filled at the given step, as chosen when the step was entered.
+         */
+        private int positionAt(int step) {
+            return this.fillOrder[step];
+        }
+
+        /**
+         * Choose the position to fill at the given step, the previous steps being filled. With a static fill order,
+         * it is read from the fill order. With {@link FillOrder#MOST_CONSTRAINED}, it is the empty cell whose fullest
+         * line has the fewest empty cells, ties being broken by the total number of filled cells of its lines, so that
+         * the forced values come first. The choice only depends on the filled cells.
+         *
+         * @param step number of filled positions
+         * @return the position to fill
+         */
+        private int choosePosition(int step) {
+            if (!this.dynamicOrder) {
+                return this.fillOrder[step];
+            }
+
+            int best = -1;
+            int bestFullest = -1;
+            int bestFilled = -1;
+
+            for (int position = 0; position < this.cells.length; ++position) {
+                if (this.cells[position] != 0) {
+                    continue;
+                }
+
+                int i = position / this.size;
+                int j = position % this.size;
+                int fullest = Math.max(this.lineCounts[i], this.lineCounts[this.size + j]);
+                int filled = this.lineCounts[i] + this.lineCounts[this.size + j];
+
+                if (i == j) {
+                    fullest = Math.max(fullest, this.lineCounts[this.firstDiag]);
+                    filled += this.lineCounts[this.firstDiag];
+                }
+
+                if (i + j == this.size - 1) {
+                    fullest = Math.max(fullest, this.lineCounts[this.secondDiag]);
+                    filled += this.lineCounts[this.secondDiag];
+                }
+
+                if (fullest > bestFullest || (fullest == bestFullest && filled > bestFilled)) {
+                    best = position;
+                    bestFullest = fullest;
+                    bestFilled = filled;
+                }
+            }
+
+            this.fillOrder[step] = best;
+
+            return best;
+        }
+
+        /**
+         * Check if the magic square is still valid after a value has been placed at the given position.
+         * Each rows, cols, diagonals sums must be equal to {@link #expectedSum}.
+         *
+         * Only the lines going through the position can have changed since the previous call, so only those
+         * are checked, using the running sums and filled-cell counts kept by {@link #place} and {@link #remove} :
+         * 	1. If the expected sum is exceeded, return that the magic square is invalid
+         * 	2a. If the line still has k empty cells, check that the missing sum can be reached with k free values :
+         * 	    it must lie between the sum of the k smallest and the sum of the k largest free values
+         * 	2b. If the line is full, check that the actual sum is the same that expected
+         *
+         * @see {@link #lineViolation} to the how a line is checked
+         *
+         * @return true if valid, false otherwise
+         */
+        private boolean isValid(int position) {
+            return this.violation(position) < 0;
+        }
+
+        /**
+         * Check the lines going through the position as {@link #isValid} does.
+         *
+         * @return the ordinal of the {@link SearchStats.Prune} of the first invalid line, or -1 if they are valid
+         */
+        private int violation(int position) {
+            int i = position / this.size;
+            int j = position % this.size;
+            int violation = this.lineViolation(i);
+
+            if (violation < 0) {
+                violation = this.lineViolation(this.size + j);
+            }
+
+            if (violation < 0 && i == j) {
+                violation = this.lineViolation(this.firstDiag);
+            }
+
+            if (violation < 0 && i + j == this.size - 1) {
+                violation = this.lineViolation(this.secondDiag);
+            }
+
+            return violation;
+        }
+
+        /**
+         * @return the ordinal of the {@link SearchStats.Prune} of a line whose sum is wrong
+         */
+        private int lineCause(int line) {
+            if (line < this.size) {
+                return SearchStats.Prune.ROW.ordinal();
+            }
+
+            return line < 2 * this.size ? SearchStats.Prune.COLUMN.ordinal() : SearchStats.Prune.DIAGONAL.ordinal();
+        }
+
+        /**
+         * Find a line for which the given position is the last empty cell.
+         *
+         * @param position position in the square
+         * @return the index of the line, or -1 if every line going through the position has other empty cells
+         */
+        private int closedLine(int position) {
+            int i = position / this.size;
+            int j = position % this.size;
+
+            if (this.lineCounts[i] == this.size - 1) {
+                return i;
+            }
+
+            if (this.lineCounts[this.size + j] == this.size - 1) {
+                return this.size + j;
+            }
+
+            if (i == j && this.lineCounts[this.firstDiag] == this.size - 1) {
+                return this.firstDiag;
+            }
+
+            if (i + j == this.size - 1 && this.lineCounts[this.secondDiag] == this.size - 1) {
+                return this.secondDiag;
+            }
+
+            return -1;
+        }
+
+        /**
+         * Get the next value to try at the given position, in increasing order, following the same rules as
+         * {@link MagicSquare#generateBranchAndBound} : when the position is the last empty cell of a line, its value
+         * is forced and is the only candidate, otherwise the candidates are the free values.
+         *
+         * @param position position in the square
+         * @param previous the previous candidate, or 0 to get the first one
+         * @return the candidate, or 0 if there is none left
+         */
+        private int nextCandidate(int position, int previous) {
+            int closedLine = this.closedLine(position);
+
+            if (closedLine >= 0) {
+                int value = this.expectedSum - this.lineSums[closedLine];
+
+                return value > previous && this.isFree(value) ? value : 0;
+            }
+
+            for (int word = previous >>> 6; word < this.usedValues.length; ++word) {
+                long freeValues = ~this.usedValues[word] & this.valueMasks[word];
+                if (word == previous >>> 6) {
+                    freeValues &= -1L << (previous & 63);
+                }
+
+                if (freeValues != 0) {
+                    return (word << 6) + Long.numberOfTrailingZeros(freeValues) + 1;
+                }
+            }
+
+            return 0;
+        }
+
+        /**
+         * @return true if the value is in range and has not been placed yet, false otherwise
+         */
+        private boolean isFree(int value) {
+            return value >= 1 && value <= this.cells.length
+                    && (this.usedValues[(value - 1) >>> 6] & (1L << (value - 1))) == 0;
+        }
+
+        /**
+         * Check that the pairs of {@link #freniclePairs} going through the given position are ordered,
+         * the pairs with an empty cell being ordered so far.
+         *
+         * @return true if ordered, false otherwise
+         */
+        private boolean isFrenicleOrdered(int position) {
+            for (int[] pair : this.freniclePairs) {
+                if ((pair[0] == position || pair[1] == position)
+                        && this.cells[pair[0]] != 0 && this.cells[pair[1]] != 0
+                        && this.cells[pair[0]] > this.cells[pair[1]]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * @return the ordinal of the {@link SearchStats.Prune} of the line if it is invalid, -1 otherwise
+         */
+        private int lineViolation(int line) {
+            if (this.lineSums[line] > this.expectedSum) {
+                return this.lineCause(line);
+            }
+
+            int emptyCells = this.size - this.lineCounts[line];
+            int missingSum = this.expectedSum - this.lineSums[line];
+
+            if (emptyCells == 0) {
+                return missingSum == 0 ? -1 : this.lineCause(line);
+            }
+
+            boolean reachable = missingSum >= this.smallestFreeSum(emptyCells) && missingSum <= this.largestFreeSum(emptyCells);
+
+            return reachable ? -1 : SearchStats.Prune.BOUND.ordinal();
+        }
+
+        /**
+         * @return the sum of the given number of smallest free values
+         */
+        private int smallestFreeSum(int count) {
+            int sum = 0;
+
+            for (int word = 0; word < this.usedValues.length; ++word) {
+                long freeValues = ~this.usedValues[word] & this.valueMasks[word];
+
+                while (freeValues != 0) {
+                    sum += (word << 6) + Long.numberOfTrailingZeros(freeValues) + 1;
+                    freeValues &= freeValues - 1;
+
+                    if (--count == 0) {
+                        return sum;
+                    }
+                }
+            }
+
+            return sum;
+        }
+
+        /**
+         * @return the sum of the given number of largest free values
+         */
+        private int largestFreeSum(int count) {
+            int sum = 0;
+
+            for (int word = this.usedValues.length - 1; word >= 0; --word) {
+                long freeValues = ~this.usedValues[word] & this.valueMasks[word];
+
+                while (freeValues != 0) {
+                    int bit = 63 - Long.numberOfLeadingZeros(freeValues);
+                    sum += (word << 6) + bit + 1;
+                    freeValues &= ~(1L << bit);
+
+                    if (--count == 0) {
+                        return sum;
+                    }
+                }
+            }
+
+            return sum;
+        }
+
+        /**
+         * Put a value in the magic square, mark it as used and update the lines going through it.
+         *
+         * @param position position in the square
+         * @param value value to put
+         */
+        private void place(int position, int value) {
+            this.cells[position] = value;
+            this.usedValues[(value - 1) >>> 6] |= 1L << (value - 1);
+            this.updateLines(position, value, 1);
+        }
+
+        /**
+         * Remove the value at the given position, reverting {@link #place}.
+         *
+         * @param position position in the square
+         * @param value value currently at this position
+         */
+        private void remove(int position, int value) {
+            this.cells[position] = 0;
+            this.usedValues[(value - 1) >>> 6] &= ~(1L << (value - 1));
+            this.updateLines(position, -value, -1);
+        }
+
+        private void updateLines(int position, int value, int count) {
+            int i = position / this.size;
+            int j = position % this.size;
+
+            this.lineSums[i] += value;
+            this.lineCounts[i] += count;
+            this.lineSums[this.size + j] += value;
+            this.lineCounts[this.size + j] += count;
+
+            if (i == j) {
+                this.lineSums[this.firstDiag] += value;
+                this.lineCounts[this.firstDiag] += count;
+            }
+
+            if (i + j == this.size - 1) {
+                this.lineSums[this.secondDiag] += value;
+                this.lineCounts[this.secondDiag] += count;
+            }
+        }
     }
 }
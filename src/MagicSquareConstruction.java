@@ -0,0 +1,123 @@
+/**
+ * Builds one magic square of any order in O(N^2), where the branch and bound search of {@link MagicSquare}
+ * cannot go beyond small orders. The method depends on the order :
+ *  - odd orders use the Siamese method
+ *  - doubly even orders (multiple of 4) use the complement method
+ *  - singly even orders (4m + 2) use Conway's LUX method
+ *
+ * The squares are written straight into an array of their cells, in row-major order.
+ */
+public final class MagicSquareConstruction {
+
+    /**
+     * Order of the values in the 2x2 blocks of the LUX method, as top left, top right, bottom left and bottom right.
+     */
+    private static final int[] L = {4, 1, 2, 3};
+    private static final int[] U = {1, 4, 2, 3};
+    private static final int[] X = {1, 4, 3, 2};
+
+    private MagicSquareConstruction() {
+    }
+
+    /**
+     * Build a magic square of the given order.
+     *
+     * @param order order of the magic square
+     * @return the cells of the magic square, in row-major order
+     */
+    public static int[] construct(int order) {
+        if (order < 1 || order == 2) {
+            throw new IllegalArgumentException("There is no magic square of order " + order);
+        }
+
+        int[] cells = new int[order * order];
+
+        if (order % 2 == 1) {
+            MagicSquareConstruction.siamese(order, cells);
+        } else if (order % 4 == 0) {
+            MagicSquareConstruction.doublyEven(order, cells);
+        } else {
+            MagicSquareConstruction.lux(order, cells);
+        }
+
+        return cells;
+    }
+
+    /**
+     * Siamese method for odd orders : start in the middle of the top row, and move up and right, wrapping around
+     * the edges. When the next cell is already filled, move down instead.
+     */
+    private static void siamese(int order, int[] cells) {
+        int i = 0;
+        int j = order / 2;
+
+        for (int value = 1; value <= order * order; ++value) {
+            cells[i * order + j] = value;
+
+            int nextI = (i + order - 1) % order;
+            int nextJ = (j + 1) % order;
+
+            if (cells[nextI * order + nextJ] != 0) {
+                nextI = (i + 1) % order;
+                nextJ = j;
+            }
+
+            i = nextI;
+            j = nextJ;
+        }
+    }
+
+    /**
+     * Complement method for orders multiple of 4 : fill the cells with 1 to N^2 in row-major order, then replace
+     * each value v on the diagonals of the 4x4 blocks by N^2 + 1 - v.
+     */
+    private static void doublyEven(int order, int[] cells) {
+        for (int i = 0; i < order; ++i) {
+            for (int j = 0; j < order; ++j) {
+                int value = i * order + j + 1;
+                boolean onBlockDiagonal = i % 4 == j % 4 || i % 4 + j % 4 == 3;
+
+                cells[i * order + j] = onBlockDiagonal ? order * order + 1 - value : value;
+            }
+        }
+    }
+
+    /**
+     * Conway's LUX method for orders 4m + 2 : build the Siamese square of order 2m + 1, and replace each of its
+     * values v by a 2x2 block of the values 4(v - 1) + 1 to 4(v - 1) + 4, in the pattern of the letter of its row :
+     * m + 1 rows of L, one row of U, and m - 1 rows of X, the middle U being swapped with the L above it.
+     */
+    private static void lux(int order, int[] cells) {
+        int half = order / 2;
+        int m = (half - 1) / 2;
+        int[] siamese = new int[half * half];
+        MagicSquareConstruction.siamese(half, siamese);
+
+        for (int i = 0; i < half; ++i) {
+            for (int j = 0; j < half; ++j) {
+                int base = 4 * (siamese[i * half + j] - 1);
+                int[] pattern = MagicSquareConstruction.luxPattern(i, j, m);
+
+                cells[(2 * i) * order + 2 * j] = base + pattern[0];
+                cells[(2 * i) * order + 2 * j + 1] = base + pattern[1];
+                cells[(2 * i + 1) * order + 2 * j] = base + pattern[2];
+                cells[(2 * i + 1) * order + 2 * j + 1] = base + pattern[3];
+            }
+        }
+    }
+
+    /**
+     * @return the order of the values in the 2x2 block of the given cell of the Siamese square
+     */
+    private static int[] luxPattern(int i, int j, int m) {
+        if (i < m || (i == m && j != m) || (i == m + 1 && j == m)) {
+            return MagicSquareConstruction.L;
+        }
+
+        if (i <= m + 1) {
+            return MagicSquareConstruction.U;
+        }
+
+        return MagicSquareConstruction.X;
+    }
+}
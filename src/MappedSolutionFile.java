@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reader of a {@link SolutionFile} mapping its records in memory, so that opening it does not depend on its size
+ * and the magic squares are read straight from the page cache instead of being rebuilt on the heap.
+ *
+ * The records are mapped in chunks of a whole number of records below 2 GB, the limit of a mapped buffer.
+ * They are exposed through {@link View}s, which decode the cells from the mapped bytes on demand : a
+ * {@link SolutionFile.Encoding#PACKED} cell is read on its own, while a {@link SolutionFile.Encoding#RANK} record is
+ * decoded once into the view when one of its cells is first read.
+ */
+public final class MappedSolutionFile implements AutoCloseable {
+
+    /**
+     * Greatest number of bytes of a chunk.
+     */
+    private static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * The header and the index by first row.
+     */
+    private final SolutionFile file;
+    private final MappedByteBuffer[] chunks;
+    private final long recordsPerChunk;
+
+    private MappedSolutionFile(SolutionFile file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.recordsPerChunk = Math.max(1, MappedSolutionFile.MAX_CHUNK_SIZE / Math.max(1, file.getRecordSize()));
+
+        long recordCount = file.size();
+        int chunkCount = (int) ((recordCount + this.recordsPerChunk - 1) / this.recordsPerChunk);
+        this.chunks = new MappedByteBuffer[chunkCount];
+
+        for (int c = 0; c < chunkCount; ++c) {
+            long first = c * this.recordsPerChunk;
+            long records = Math.min(this.recordsPerChunk, recordCount - first);
+
+            this.chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    SolutionFile.HEADER_SIZE + first * file.getRecordSize(), records * file.getRecordSize());
+        }
+    }
+
+    /**
+     * Map a file of magic squares. The file must not be modified while it is mapped.
+     */
+    public static MappedSolutionFile open(Path path) throws IOException {
+        SolutionFile file = SolutionFile.open(path);
+
+        // The mappings stay valid once the channel is closed
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MappedSolutionFile(file, channel);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int getOrder() {
+        return this.file.getOrder();
+    }
+
+    public long size() {
+        return this.file.size();
+    }
+
+    /**
+     * Get a view of the magic square at the given index. Each call gives a new view, which can be moved to other
+     * magic squares with {@link View#moveTo}.
+     */
+    public View view(long index) {
+        View view = new View();
+        view.moveTo(index);
+
+        return view;
+    }
+
+    /**
+     * @see SolutionFile#recordsWithFirstRow
+     */
+    public LongStream recordsWithFirstRow(int[] firstRow) {
+        return this.file.recordsWithFirstRow(firstRow);
+    }
+
+    /**
+     * Visit every magic square in the order of the file, through a single view moved from one to the next.
+     */
+    public void forEach(Consumer<View> action) {
+        View view = new View();
+
+        for (long index = 0; index < this.size(); ++index) {
+            view.moveTo(index);
+            action.accept(view);
+        }
+    }
+
+    /**
+     * Get a stream of the magic squares, which splits the records into ranges of indexes when it is parallel so that
+     * the scan is spread across the cores. Each range moves a single view from one magic square to the next :
+     * the views must not be kept beyond the call of the operation they are given to.
+     */
+    public Stream<View> views() {
+        return StreamSupport.stream(new ViewSpliterator(0, this.size()), false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    /**
+     * Zero-copy view of a record in a mapped chunk.
+     */
+    public final class View {
+
+        private final int cellCount = MappedSolutionFile.this.getOrder() * MappedSolutionFile.this.getOrder();
+        private final int bits = SolutionFile.valueBits(this.cellCount);
+        private MappedByteBuffer chunk;
+        private int offset;
+        private long index = -1;
+        /**
+         * The decoded cells of a {@link SolutionFile.Encoding#RANK} record, or null until one of them is read.
+         */
+        private int[] decoded;
+        private boolean isDecoded;
+
+        private View() {
+        }
+
+        /**
+         * Move the view to the magic square at the given index.
+         */
+        public View moveTo(long index) {
+            if (index < 0 || index >= MappedSolutionFile.this.size()) {
+                throw new IndexOutOfBoundsException("No magic square " + index + " in a file of " + MappedSolutionFile.this.size());
+            }
+
+            this.index = index;
+            this.chunk = MappedSolutionFile.this.chunks[(int) (index / MappedSolutionFile.this.recordsPerChunk)];
+            this.offset = (int) (index % MappedSolutionFile.this.recordsPerChunk) * MappedSolutionFile.this.file.getRecordSize();
+            this.isDecoded = false;
+
+            return this;
+        }
+
+        public long getIndex() {
+            return this.index;
+        }
+
+        /**
+         * @param position position of the cell in row-major order
+         * @return the value of the cell
+         */
+        public int get(int position) {
+            if (MappedSolutionFile.this.file.getEncoding() == SolutionFile.Encoding.PACKED) {
+                return SolutionFile.packedValue(this.chunk, this.offset, this.bits, position);
+            }
+
+            if (!this.isDecoded) {
+                if (this.decoded == null) {
+                    this.decoded = new int[this.cellCount];
+                }
+
+                SolutionFile.decode(SolutionFile.Encoding.RANK, MappedSolutionFile.this.file.getRecordSize(), this.chunk, this.offset, this.decoded);
+                this.isDecoded = true;
+            }
+
+            return this.decoded[position];
+        }
+
+        /**
+         * @return a copy of the cells of the magic square, in row-major order
+         */
+        public int[] toArray() {
+            int[] cells = new int[this.cellCount];
+            for (int position = 0; position < this.cellCount; ++position) {
+                cells[position] = this.get(position);
+            }
+
+            return cells;
+        }
+
+        /**
+         * Print the magic square as {@link MagicSquare#printMagicSquare} does.
+         */
+        public void print() {
+            System.out.println(this);
+        }
+
+        @Override
+        public String toString() {
+            return MagicSquare.formatMagicSquare(this.cellCount, this::get);
+        }
+    }
+
+    /**
+     * Spliterator over a range of indexes, halved on each split.
+     */
+    private final class ViewSpliterator implements Spliterator<View> {
+
+        private long next;
+        private final long end;
+        private View view;
+
+        private ViewSpliterator(long next, long end) {
+            this.next = next;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super View> action) {
+            if (this.next >= this.end) {
+                return false;
+            }
+
+            if (this.view == null) {
+                this.view = new View();
+            }
+
+            action.accept(this.view.moveTo(this.next++));
+
+            return true;
+        }
+
+        @Override
+        public Spliterator<View> trySplit() {
+            long middle = (this.next + this.end) >>> 1;
+
+            if (middle <= this.next) {
+                return null;
+            }
+
+            ViewSpliterator prefix = new ViewSpliterator(this.next, middle);
+            this.next = middle;
+
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.end - this.next;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.NONNULL;
+        }
+    }
+}
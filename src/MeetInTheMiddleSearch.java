@@ -0,0 +1,685 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Enumerates the magic squares by joining their top and bottom halves instead of searching whole squares.
+ * The top half is made of the first N / 2 rows and the bottom half of the other ones, each row being an arrangement
+ * of a set of N values reaching the expected sum.
+ *
+ * The top halves are indexed by a hash of their used values, their column sums and their diagonal sums. Each bottom
+ * half then looks up the top halves with the complementary key : the other values, and the sums completing its own
+ * ones to the expected sum. The candidates sharing the hash are checked on their values and sums before being
+ * emitted, without allocating.
+ *
+ * The index is a primitive hash map over a flat array of the cells of the halves. When it outgrows its memory budget,
+ * the join spills to disk : both sides are written to partition files by the top bits of their keys, then each
+ * partition is joined in memory on its own. A partition whose index would still outgrow the budget is split again on
+ * the next bits of the keys, with its bottom halves, into enough partitions for each to fit.
+ */
+public final class MeetInTheMiddleSearch {
+
+    /**
+     * Greatest order the search can run. The values fit in the bits of a long up to order 8, but the arrangements of
+     * the rows reaching the expected sum are all kept in memory : 167280 for order 5, 23 million for order 6 and
+     * 4.8 billion for order 7. From order 6, the top halves made of them are out of reach even on disk.
+     */
+    private static final int MAX_ORDER = 5;
+    /**
+     * Number of bits of the keys giving the partition files of the first spill, before the number of halves is known.
+     */
+    private static final int SPILL_BITS = 6;
+    /**
+     * Greatest number of bits of the keys used by a split of a partition, bounding the number of files open at once.
+     */
+    private static final int MAX_SPLIT_BITS = 8;
+    /**
+     * Greatest length of an array the JVM allocates.
+     */
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final int order;
+    private final int expectedSum;
+    private final int topRows;
+    private final long allValues;
+    private final long memoryBudget;
+    /**
+     * Every arrangement of every set of N values reaching the expected sum, with the bitset of its values.
+     */
+    private final int[][] rows;
+    private final long[] rowMasks;
+
+    private MeetInTheMiddleSearch(int order, long memoryBudget) {
+        if (order < 1 || order > MeetInTheMiddleSearch.MAX_ORDER) {
+            throw new IllegalArgumentException("The meet in the middle search needs an order between 1 and "
+                    + MeetInTheMiddleSearch.MAX_ORDER + ", got " + order);
+        }
+
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive, got " + memoryBudget);
+        }
+
+        this.order = order;
+        this.expectedSum = order * (order * order + 1) / 2;
+        this.topRows = order / 2;
+        this.allValues = order * order == 64 ? -1L : (1L << (order * order)) - 1;
+        this.memoryBudget = memoryBudget;
+
+        List<int[]> rows = new ArrayList<>();
+        this.addRows(new int[order], 0, 0, 0L, rows);
+        this.rows = rows.toArray(new int[0][]);
+        this.rowMasks = new long[this.rows.length];
+        for (int r = 0; r < this.rows.length; ++r) {
+            for (int value : this.rows[r]) {
+                this.rowMasks[r] |= 1L << (value - 1);
+            }
+        }
+    }
+
+    /**
+     * @see #enumerate(int, long, Consumer)
+     */
+    public static long enumerate(int order, Consumer<int[]> sink) {
+        return MeetInTheMiddleSearch.enumerate(order, Runtime.getRuntime().maxMemory() / 4, sink);
+    }
+
+    /**
+     * Generate all the magic squares of the given order, handing each one to the sink as soon as it is found.
+     * The sink gets cells in row-major order that are reused for the next solutions.
+     *
+     * @param order order of the magic squares, up to 5
+     * @param memoryBudget number of bytes the index of the top halves may use before the join spills to disk
+     * @param sink consumer of the solutions
+     * @return the number of magic squares
+     */
+    public static long enumerate(int order, long memoryBudget, Consumer<int[]> sink) {
+        return new MeetInTheMiddleSearch(order, memoryBudget).new Join(sink).run();
+    }
+
+    /**
+     * Add the arrangements of N distinct values reaching the expected sum, completing the given first values.
+     */
+    private void addRows(int[] row, int count, int sum, long used, List<int[]> rows) {
+        if (count == this.order) {
+            if (sum == this.expectedSum) {
+                rows.add(row.clone());
+            }
+
+            return;
+        }
+
+        for (int value = 1; value <= this.order * this.order && sum + value <= this.expectedSum; ++value) {
+            if ((used & (1L << (value - 1))) == 0) {
+                row[count] = value;
+                this.addRows(row, count + 1, sum + value, used | (1L << (value - 1)), rows);
+            }
+        }
+    }
+
+    /**
+     * Hash the join key of a half. The sums are the column sums followed by the two diagonal sums.
+     */
+    private static long key(long values, int[] sums) {
+        long key = values * 0x9E3779B97F4A7C15L;
+
+        for (int sum : sums) {
+            key = (key ^ sum) * 0xBF58476D1CE4E5B9L;
+            key ^= key >>> 31;
+        }
+
+        return key;
+    }
+
+    /**
+     * A consumer of the halves, given their cells, the bitset of their values and the hash of their join key.
+     */
+    private interface HalfVisitor {
+        void visit(byte[] cells, long values, long key);
+    }
+
+    /**
+     * Walk the halves made of the rows from the given one to the given bound.
+     *
+     * @param complement true to hash the key of the halves matching each half instead of its own
+     */
+    private void forEachHalf(int firstRow, int endRow, boolean complement, HalfVisitor visitor) {
+        byte[] cells = new byte[(endRow - firstRow) * this.order];
+        int[] sums = new int[this.order + 2];
+
+        this.addHalfRows(firstRow, firstRow, endRow, cells, sums, 0L, complement, visitor);
+    }
+
+    private void addHalfRows(int row, int firstRow, int endRow, byte[] cells, int[] sums, long used, boolean complement,
+                             HalfVisitor visitor) {
+        int n = this.order;
+
+        if (row == endRow) {
+            if (complement) {
+                int[] missingSums = new int[sums.length];
+                for (int k = 0; k < sums.length; ++k) {
+                    missingSums[k] = this.expectedSum - sums[k];
+                }
+
+                visitor.visit(cells, used, MeetInTheMiddleSearch.key(this.allValues & ~used, missingSums));
+            } else {
+                visitor.visit(cells, used, MeetInTheMiddleSearch.key(used, sums));
+            }
+
+            return;
+        }
+
+        for (int r = 0; r < this.rows.length; ++r) {
+            if ((this.rowMasks[r] & used) != 0) {
+                continue;
+            }
+
+            int[] values = this.rows[r];
+            for (int j = 0; j < n; ++j) {
+                sums[j] += values[j];
+                cells[(row - firstRow) * n + j] = (byte) values[j];
+            }
+            sums[n] += values[row];
+            sums[n + 1] += values[n - 1 - row];
+
+            if (this.isReachable(sums, used | this.rowMasks[r], n - (row + 1 - firstRow))) {
+                this.addHalfRows(row + 1, firstRow, endRow, cells, sums, used | this.rowMasks[r], complement, visitor);
+            }
+
+            for (int j = 0; j < n; ++j) {
+                sums[j] -= values[j];
+            }
+            sums[n] -= values[row];
+            sums[n + 1] -= values[n - 1 - row];
+        }
+    }
+
+    /**
+     * Check that each line can still reach the expected sum with the values left : its missing sum must
+     * lie between the sum of the smallest and the sum of the largest values left, one per empty row.
+     */
+    private boolean isReachable(int[] sums, long used, int emptyRows) {
+        long free = this.allValues & ~used;
+        int smallest = 0;
+        int largest = 0;
+        long low = free;
+        long high = free;
+
+        for (int k = 0; k < emptyRows && low != 0; ++k) {
+            smallest += Long.numberOfTrailingZeros(low) + 1;
+            low &= low - 1;
+            int bit = 63 - Long.numberOfLeadingZeros(high);
+            largest += bit + 1;
+            high &= ~(1L << bit);
+        }
+
+        for (int sum : sums) {
+            int missing = this.expectedSum - sum;
+
+            if (missing < smallest || missing > largest) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Primitive hash map from the hashed keys to the top halves, the cells of which are stored one after the other in
+     * a byte array. The halves sharing a key are chained through {@link #next}.
+     */
+    private static final class HalfIndex {
+
+        private final int halfSize;
+        private byte[] cells;
+        private int[] next = new int[64];
+        private int size;
+        /**
+         * Open addressing table of the distinct keys and of the last half added for each, or -1 for an empty slot.
+         */
+        private long[] keys = new long[64];
+        private int[] heads = HalfIndex.emptyHeads(64);
+        private int keyCount;
+
+        private HalfIndex(int halfSize) {
+            this.halfSize = halfSize;
+            this.cells = new byte[64 * halfSize];
+        }
+
+        private static int[] emptyHeads(int capacity) {
+            int[] heads = new int[capacity];
+            Arrays.fill(heads, -1);
+
+            return heads;
+        }
+
+        private long memoryUsed() {
+            return this.cells.length + 4L * this.next.length + 12L * this.keys.length;
+        }
+
+        /**
+         * @return an estimate of the memory used by an index of the given number of halves, with two slots per half
+         */
+        private static long memoryFor(long halves, int halfSize) {
+            return halves * (halfSize + 4 + 2 * 12);
+        }
+
+        /**
+         * Check that the arrays of an index of the given number of halves stay below the greatest array length, the
+         * halves doubling from 64 and the table of the keys holding up to four slots per half.
+         */
+        private static boolean fits(long halves, int halfSize) {
+            long capacity = Math.max(64, Long.highestOneBit(Math.max(1, halves - 1)) << 1);
+
+            return capacity * halfSize <= MeetInTheMiddleSearch.MAX_ARRAY_LENGTH
+                    && 4 * capacity <= MeetInTheMiddleSearch.MAX_ARRAY_LENGTH;
+        }
+
+        /**
+         * @return a number of halves which always {@link #fits}, the capacity being below twice the number of halves
+         */
+        private static long maxHalves(int halfSize) {
+            return MeetInTheMiddleSearch.MAX_ARRAY_LENGTH / (2L * Math.max(halfSize, 4));
+        }
+
+        /**
+         * @return true if one more half can be added without growing the arrays beyond the greatest array length
+         */
+        private boolean canAdd() {
+            return HalfIndex.fits(this.size + 1L, this.halfSize);
+        }
+
+        private void add(long key, byte[] half) {
+            if (this.size == this.next.length) {
+                this.next = Arrays.copyOf(this.next, 2 * this.size);
+                this.cells = Arrays.copyOf(this.cells, 2 * this.size * this.halfSize);
+            }
+
+            if (2 * (this.keyCount + 1) > this.keys.length) {
+                this.rehash();
+            }
+
+            System.arraycopy(half, 0, this.cells, this.size * this.halfSize, this.halfSize);
+
+            int slot = this.slot(key);
+            if (this.heads[slot] < 0) {
+                this.keys[slot] = key;
+                ++this.keyCount;
+            }
+
+            this.next[this.size] = this.heads[slot];
+            this.heads[slot] = this.size++;
+        }
+
+        /**
+         * @return the last half added with the key, the others following through {@link #next}, or -1 if there is none
+         */
+        private int first(long key) {
+            return this.heads[this.slot(key)];
+        }
+
+        private int slot(long key) {
+            int mask = this.keys.length - 1;
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+
+            while (this.heads[slot] >= 0 && this.keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+
+        private void rehash() {
+            long[] keys = this.keys;
+            int[] heads = this.heads;
+            this.keys = new long[2 * keys.length];
+            this.heads = HalfIndex.emptyHeads(2 * keys.length);
+
+            for (int slot = 0; slot < keys.length; ++slot) {
+                if (heads[slot] >= 0) {
+                    int newSlot = this.slot(keys[slot]);
+                    this.keys[newSlot] = keys[slot];
+                    this.heads[newSlot] = heads[slot];
+                }
+            }
+        }
+
+        /**
+         * Walk the halves with their keys, to spill them.
+         */
+        private void forEach(HalfVisitor visitor) {
+            byte[] half = new byte[this.halfSize];
+
+            for (int slot = 0; slot < this.keys.length; ++slot) {
+                for (int h = this.heads[slot]; h >= 0; h = this.next[h]) {
+                    System.arraycopy(this.cells, h * this.halfSize, half, 0, this.halfSize);
+                    visitor.visit(half, 0L, this.keys[slot]);
+                }
+            }
+        }
+    }
+
+    /**
+     * A source of halves that may read them from disk.
+     */
+    private interface HalfSource {
+        void forEach(HalfVisitor visitor) throws IOException;
+    }
+
+    /**
+     * Partition files of one side of a spilled join, each record being the key of a half followed by its cells.
+     * The partition of a half is given by the {@link #bits} bits of its key following the {@link #shift} bits already
+     * used by the partitions it was split from.
+     */
+    private static final class SpillFiles implements AutoCloseable {
+
+        private final String name;
+        private final int shift;
+        private final int bits;
+        private final Path[] paths;
+        private final DataOutputStream[] outputs;
+        private final long[] counts;
+
+        private SpillFiles(Path directory, String name, int shift, int bits) throws IOException {
+            this.name = name;
+            this.shift = shift;
+            this.bits = bits;
+            this.paths = new Path[1 << bits];
+            this.outputs = new DataOutputStream[1 << bits];
+            this.counts = new long[1 << bits];
+
+            for (int p = 0; p < this.paths.length; ++p) {
+                this.paths[p] = directory.resolve(name + "-" + p);
+                this.outputs[p] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.paths[p])));
+            }
+        }
+
+        private void write(long key, byte[] half) {
+            int partition = (int) ((key << this.shift) >>> (Long.SIZE - this.bits));
+            DataOutputStream output = this.outputs[partition];
+
+            try {
+                output.writeLong(key);
+                output.write(half);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            ++this.counts[partition];
+        }
+
+        /**
+         * @return the number of bits of the keys a split of the partitions may use, 0 if they are all used
+         */
+        private int splitBits() {
+            return Math.min(MeetInTheMiddleSearch.MAX_SPLIT_BITS, Long.SIZE - this.shift - this.bits);
+        }
+
+        /**
+         * Read back the records of a partition, once the files are closed.
+         */
+        private void read(int partition, int halfSize, HalfVisitor visitor) throws IOException {
+            byte[] half = new byte[halfSize];
+
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.paths[partition])))) {
+                while (true) {
+                    long key;
+                    try {
+                        key = input.readLong();
+                    } catch (EOFException e) {
+                        return;
+                    }
+
+                    input.readFully(half);
+                    visitor.visit(half, 0L, key);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (DataOutputStream output : this.outputs) {
+                output.close();
+            }
+        }
+
+        private void delete() throws IOException {
+            for (int p = 0; p < this.paths.length; ++p) {
+                this.delete(p);
+            }
+        }
+
+        private void delete(int partition) throws IOException {
+            Files.deleteIfExists(this.paths[partition]);
+        }
+    }
+
+    /**
+     * One run of the join, from the indexing of the top halves to the emission of the squares.
+     */
+    private final class Join {
+
+        private final Consumer<int[]> sink;
+        private final int topSize = MeetInTheMiddleSearch.this.topRows * MeetInTheMiddleSearch.this.order;
+        private final int[] cells = new int[MeetInTheMiddleSearch.this.order * MeetInTheMiddleSearch.this.order];
+        private final int[] columnSums = new int[MeetInTheMiddleSearch.this.order];
+        private HalfIndex index = new HalfIndex(this.topSize);
+        private Path spillDirectory;
+        private SpillFiles topSpill;
+        private long solutionCount;
+
+        private Join(Consumer<int[]> sink) {
+            this.sink = sink;
+        }
+
+        private long run() {
+            MeetInTheMiddleSearch search = MeetInTheMiddleSearch.this;
+
+            try {
+                search.forEachHalf(0, search.topRows, false, this::addTop);
+
+                if (this.topSpill == null) {
+                    search.forEachHalf(search.topRows, search.order, true, (half, values, key) -> this.probe(this.index, half, key));
+                } else {
+                    this.joinSpilled();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return this.solutionCount;
+        }
+
+        private void addTop(byte[] half, long values, long key) {
+            if (this.topSpill != null) {
+                this.topSpill.write(key, half);
+                return;
+            }
+
+            // Past the greatest array length, the index is over budget whatever the budget
+            if (!this.index.canAdd()) {
+                this.spillTop();
+                this.topSpill.write(key, half);
+                return;
+            }
+
+            this.index.add(key, half);
+
+            if (this.index.memoryUsed() > MeetInTheMiddleSearch.this.memoryBudget) {
+                this.spillTop();
+            }
+        }
+
+        /**
+         * Move the indexed top halves to partition files, where the next ones are written.
+         */
+        private void spillTop() {
+            try {
+                this.spillDirectory = Files.createTempDirectory("magic-square-join");
+                this.topSpill = new SpillFiles(this.spillDirectory, "top", 0, MeetInTheMiddleSearch.SPILL_BITS);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            this.index.forEach((spilled, none, spilledKey) -> this.topSpill.write(spilledKey, spilled));
+            this.index = null;
+        }
+
+        /**
+         * Write the bottom halves to their own partition files, then join the partitions.
+         */
+        private void joinSpilled() throws IOException {
+            MeetInTheMiddleSearch search = MeetInTheMiddleSearch.this;
+
+            try {
+                this.topSpill.close();
+                SpillFiles bottomSpill = this.spill("bottom", 0, MeetInTheMiddleSearch.SPILL_BITS,
+                        visitor -> search.forEachHalf(search.topRows, search.order, true, visitor));
+
+                try {
+                    this.join(this.topSpill, bottomSpill);
+                } finally {
+                    bottomSpill.delete();
+                }
+            } finally {
+                this.topSpill.delete();
+                Files.deleteIfExists(this.spillDirectory);
+            }
+        }
+
+        /**
+         * Join the partitions of both sides one by one in memory. A partition of top halves whose index would outgrow
+         * the memory budget is split again, with the matching partition of bottom halves, on the next bits of the keys :
+         * twice as many partitions as needed for each to fit, as far as {@link #MAX_SPLIT_BITS} allows, the partitions
+         * still too large being split in turn.
+         */
+        private void join(SpillFiles top, SpillFiles bottom) throws IOException {
+            MeetInTheMiddleSearch search = MeetInTheMiddleSearch.this;
+            int bottomSize = search.order * search.order - this.topSize;
+
+            for (int p = 0; p < top.paths.length; ++p) {
+                int partition = p;
+                long memory = HalfIndex.memoryFor(top.counts[p], this.topSize);
+
+                if ((memory > search.memoryBudget || !HalfIndex.fits(top.counts[p], this.topSize)) && top.splitBits() > 0) {
+                    long budget = Math.min(search.memoryBudget, HalfIndex.memoryFor(HalfIndex.maxHalves(this.topSize), this.topSize));
+                    long parts = (memory + budget - 1) / budget;
+                    int bits = Math.min(top.splitBits(), Long.SIZE - Long.numberOfLeadingZeros(parts - 1) + 1);
+                    int shift = top.shift + top.bits;
+                    SpillFiles topSplit = this.spill(top.name + "-" + p, shift, bits,
+                            visitor -> top.read(partition, this.topSize, visitor));
+
+                    try {
+                        SpillFiles bottomSplit = this.spill(bottom.name + "-" + p, shift, bits,
+                                visitor -> bottom.read(partition, bottomSize, visitor));
+
+                        try {
+                            top.delete(p);
+                            bottom.delete(p);
+                            this.join(topSplit, bottomSplit);
+                        } finally {
+                            bottomSplit.delete();
+                        }
+                    } finally {
+                        topSplit.delete();
+                    }
+                } else {
+                    HalfIndex index = new HalfIndex(this.topSize);
+                    top.read(p, this.topSize, (half, values, key) -> index.add(key, half));
+                    bottom.read(p, bottomSize, (half, values, key) -> this.probe(index, half, key));
+                }
+            }
+        }
+
+        /**
+         * Write halves to new partition files, closed once written.
+         *
+         * @param shift number of top bits of the keys already used by the partitions the halves come from
+         * @param bits number of bits of the keys giving the partitions
+         */
+        private SpillFiles spill(String name, int shift, int bits, HalfSource halves) throws IOException {
+            SpillFiles files = new SpillFiles(this.spillDirectory, name, shift, bits);
+
+            try (files) {
+                halves.forEach((half, values, key) -> files.write(key, half));
+            } catch (IOException | RuntimeException e) {
+                files.delete();
+                throw e;
+            }
+
+            return files;
+        }
+
+        /**
+         * Emit the squares made of a bottom half and of the top halves of the index with its complementary key.
+         */
+        private void probe(HalfIndex index, byte[] bottom, long key) {
+            for (int top = index.first(key); top >= 0; top = index.next[top]) {
+                for (int k = 0; k < this.topSize; ++k) {
+                    this.cells[k] = index.cells[top * this.topSize + k];
+                }
+
+                for (int k = 0; k < bottom.length; ++k) {
+                    this.cells[this.topSize + k] = bottom[k];
+                }
+
+                if (this.isMatch()) {
+                    ++this.solutionCount;
+                    this.sink.accept(this.cells);
+                }
+            }
+        }
+
+        /**
+         * Check that the halves in {@link #cells}, sharing the hash of their keys, match : their values are distinct,
+         * and the columns and the diagonals reach the expected sum. The rows reach it by construction.
+         */
+        private boolean isMatch() {
+            MeetInTheMiddleSearch search = MeetInTheMiddleSearch.this;
+            int n = search.order;
+            long used = 0L;
+            int firstDiagonal = 0;
+            int secondDiagonal = 0;
+            Arrays.fill(this.columnSums, 0);
+
+            for (int k = 0; k < this.cells.length; ++k) {
+                int value = this.cells[k];
+                long bit = 1L << (value - 1);
+
+                if ((used & bit) != 0) {
+                    return false;
+                }
+
+                used |= bit;
+                int row = k / n;
+                int column = k % n;
+                this.columnSums[column] += value;
+
+                if (row == column) {
+                    firstDiagonal += value;
+                }
+
+                if (row + column == n - 1) {
+                    secondDiagonal += value;
+                }
+            }
+
+            for (int sum : this.columnSums) {
+                if (sum != search.expectedSum) {
+                    return false;
+                }
+            }
+
+            return firstDiagonal == search.expectedSum && secondDiagonal == search.expectedSum;
+        }
+    }
+}
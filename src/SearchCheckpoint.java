@@ -0,0 +1,235 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Progress of a long enumeration kept on disk, so that a restarted run skips the prefixes already searched.
+ * The directory holds two append-only files :
+ *  - solutions : the magic squares found, one per line, their cells in row-major order separated by spaces
+ *  - checkpoint : a header describing the search, then one line per completed prefix giving its values in fill order,
+ *    its number of solutions and the length of the solutions file once they were written
+ *
+ * While a prefix is searched, its solutions are streamed to a part file of its own, so that the memory used does not
+ * depend on their number. Once the prefix is completed, the part file is appended to the solutions file and deleted,
+ * and the prefix is only recorded once its solutions are forced to disk. On opening, the solutions file is truncated to
+ * the length recorded by the last complete line, and the part files left are deleted, which drops the solutions of the
+ * prefixes that were interrupted.
+ */
+final class SearchCheckpoint implements AutoCloseable {
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String SOLUTIONS_FILE = "solutions";
+    private static final String PART_SUFFIX = ".part";
+
+    private final Path directory;
+
+    private final FileChannel checkpoint;
+    private final FileChannel solutions;
+    /**
+     * Number of solutions of each completed prefix.
+     */
+    private final Map<String, Long> completed = new HashMap<>();
+    private final long resumedCount;
+
+    private SearchCheckpoint(Path directory, FileChannel checkpoint, FileChannel solutions, String description)
+            throws IOException {
+        this.directory = directory;
+        this.checkpoint = checkpoint;
+        this.solutions = solutions;
+
+        // Solutions of the prefixes interrupted by the previous run
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(directory, "*" + SearchCheckpoint.PART_SUFFIX)) {
+            for (Path part : parts) {
+                Files.delete(part);
+            }
+        }
+
+        ByteBuffer content = ByteBuffer.allocate((int) checkpoint.size());
+        checkpoint.read(content, 0);
+        String[] lines = new String(content.array(), StandardCharsets.US_ASCII).split("\n", -1);
+
+        if (lines.length == 1) {
+            // New or torn header : start over
+            checkpoint.truncate(0);
+            solutions.truncate(0);
+            this.append(checkpoint, description + "\n");
+            this.resumedCount = 0;
+            return;
+        }
+
+        if (!lines[0].equals(description)) {
+            throw new IllegalStateException("The checkpoint is for the search " + lines[0] + ", not " + description);
+        }
+
+        long resumedCount = 0;
+        long checkpointLength = lines[0].length() + 1;
+        long solutionsLength = 0;
+
+        // The last element follows the last line break : it is empty, or a line torn by a crash
+        for (int l = 1; l < lines.length - 1; ++l) {
+            String[] fields = lines[l].split(";");
+            long count = Long.parseLong(fields[1]);
+
+            this.completed.put(fields[0], count);
+            resumedCount += count;
+            checkpointLength += lines[l].length() + 1;
+            solutionsLength = Long.parseLong(fields[2]);
+        }
+
+        checkpoint.truncate(checkpointLength);
+        solutions.truncate(solutionsLength);
+        this.resumedCount = resumedCount;
+    }
+
+    /**
+     * Open the checkpoint of a search in the given directory, creating it if needed.
+     *
+     * @param description parameters of the search, which must be the same when resuming
+     * @throws IllegalStateException if the directory holds the checkpoint of another search
+     */
+    static SearchCheckpoint open(Path directory, String description) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel checkpoint = FileChannel.open(directory.resolve(SearchCheckpoint.CHECKPOINT_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel solutions = FileChannel.open(directory.resolve(SearchCheckpoint.SOLUTIONS_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        try {
+            return new SearchCheckpoint(directory, checkpoint, solutions, description);
+        } catch (IOException | RuntimeException e) {
+            checkpoint.close();
+            solutions.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the key of a prefix, its values in fill order
+     */
+    static String prefix(int[] values, int length) {
+        StringBuilder prefix = new StringBuilder();
+        for (int k = 0; k < length; ++k) {
+            if (k > 0) {
+                prefix.append(' ');
+            }
+
+            prefix.append(values[k]);
+        }
+
+        return prefix.toString();
+    }
+
+    boolean isCompleted(String prefix) {
+        return this.completed.containsKey(prefix);
+    }
+
+    /**
+     * @return the number of solutions of the prefixes completed by the previous runs
+     */
+    long getResumedCount() {
+        return this.resumedCount;
+    }
+
+    /**
+     * Start the search of a prefix : its solutions are written to its part file until {@link Part#complete}.
+     */
+    Part start(String prefix) {
+        Path path = this.directory.resolve(prefix.replace(' ', '-') + SearchCheckpoint.PART_SUFFIX);
+
+        try {
+            return new Part(prefix, path, Files.newBufferedWriter(path, StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Append the part file of a prefix to the solutions, then record the prefix as completed. Both are forced to disk.
+     */
+    private synchronized void complete(String prefix, long count, Path part) throws IOException {
+        try (FileChannel source = FileChannel.open(part, StandardOpenOption.READ)) {
+            long position = this.solutions.size();
+            long size = source.size();
+
+            for (long copied = 0; copied < size; ) {
+                copied += source.transferTo(copied, size - copied, this.solutions.position(position + copied));
+            }
+        }
+
+        this.solutions.force(false);
+        this.append(this.checkpoint, prefix + ";" + count + ";" + this.solutions.size() + "\n");
+        this.checkpoint.force(false);
+        Files.delete(part);
+    }
+
+    private void append(FileChannel channel, String text) throws IOException {
+        ByteBuffer buffer = StandardCharsets.US_ASCII.encode(text);
+        long position = channel.size();
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.checkpoint.close();
+        this.solutions.close();
+    }
+
+    /**
+     * Solutions of a prefix being searched, written to its part file in the format of the solutions file.
+     * A part is used by the single task searching its prefix.
+     */
+    final class Part {
+
+        private final String prefix;
+        private final Path path;
+        private final BufferedWriter writer;
+        private long count;
+
+        private Part(String prefix, Path path, BufferedWriter writer) {
+            this.prefix = prefix;
+            this.path = path;
+            this.writer = writer;
+        }
+
+        void add(int[] cells) {
+            try {
+                for (int k = 0; k < cells.length; ++k) {
+                    if (k > 0) {
+                        this.writer.write(' ');
+                    }
+
+                    this.writer.write(Integer.toString(cells[k]));
+                }
+
+                this.writer.write('\n');
+                ++this.count;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Close the part file and record the prefix as completed with its solutions.
+         */
+        void complete() {
+            try {
+                this.writer.close();
+                SearchCheckpoint.this.complete(this.prefix, this.count, this.path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
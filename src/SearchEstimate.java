@@ -0,0 +1,99 @@
+/**
+ * Estimate of the size of a search of {@link MagicSquare} before running it, from random probes down its tree.
+ * Each probe follows a single random branch : at each node, it counts the values accepted at the next position and
+ * descends into one of them. The product of the counts above a node is the number of nodes of its depth the probe
+ * stands for, so that the sum of these products along the probe is an unbiased estimate of the number of nodes, and
+ * the product at the last position an unbiased estimate of the number of solutions (Knuth, 1975).
+ *
+ * The estimates are the means over the probes, with a 95 % confidence interval from their standard error. The
+ * estimates of a single probe are heavy tailed, as a few rare branches hold most of the tree : the interval is only
+ * reliable with many probes.
+ */
+public final class SearchEstimate {
+
+    /**
+     * Quantile of the normal distribution for a 95 % confidence interval.
+     */
+    private static final double Z_95 = 1.959963984540054;
+
+    private long samples;
+    private double nodeSum;
+    private double nodeSquareSum;
+    private double solutionSum;
+    private double solutionSquareSum;
+
+    SearchEstimate() {
+    }
+
+    /**
+     * Add the estimates of a probe.
+     */
+    void add(double nodes, double solutions) {
+        ++this.samples;
+        this.nodeSum += nodes;
+        this.nodeSquareSum += nodes * nodes;
+        this.solutionSum += solutions;
+        this.solutionSquareSum += solutions * solutions;
+    }
+
+    /**
+     * Add the probes of another estimate.
+     */
+    void add(SearchEstimate estimate) {
+        this.samples += estimate.samples;
+        this.nodeSum += estimate.nodeSum;
+        this.nodeSquareSum += estimate.nodeSquareSum;
+        this.solutionSum += estimate.solutionSum;
+        this.solutionSquareSum += estimate.solutionSquareSum;
+    }
+
+    public long getSamples() {
+        return this.samples;
+    }
+
+    /**
+     * @return the estimated number of nodes of the search, see {@link SearchStats#getNodes()}
+     */
+    public double getNodes() {
+        return this.nodeSum / this.samples;
+    }
+
+    /**
+     * @return the half width of the 95 % confidence interval of {@link #getNodes()}
+     */
+    public double getNodesError() {
+        return SearchEstimate.error(this.samples, this.nodeSum, this.nodeSquareSum);
+    }
+
+    /**
+     * @return the estimated number of magic squares, as counted by {@link MagicSquare#count}
+     */
+    public double getSolutions() {
+        return this.solutionSum / this.samples;
+    }
+
+    /**
+     * @return the half width of the 95 % confidence interval of {@link #getSolutions()}
+     */
+    public double getSolutionsError() {
+        return SearchEstimate.error(this.samples, this.solutionSum, this.solutionSquareSum);
+    }
+
+    private static double error(long samples, double sum, double squareSum) {
+        if (samples < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double mean = sum / samples;
+        double variance = Math.max(0, (squareSum - samples * mean * mean) / (samples - 1));
+
+        return SearchEstimate.Z_95 * Math.sqrt(variance / samples);
+    }
+
+    @Override
+    public String toString() {
+        return "Probes : " + this.samples
+                + String.format("%nNodes : %.4g +- %.2g", this.getNodes(), this.getNodesError())
+                + String.format("%nSolutions : %.4g +- %.2g", this.getSolutions(), this.getSolutionsError());
+    }
+}
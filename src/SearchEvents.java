@@ -0,0 +1,169 @@
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the search of {@link MagicSquare}, to be correlated with the GC, safepoint and CPU
+ * events of a recording in JDK Mission Control :
+ *  - {@link Task} spans the search of the subtree of a task at the split depth, and tells its prefix
+ *  - {@link Solution} marks each magic square found, and is disabled by default as there are millions of them
+ *  - {@link Throughput} samples the counters of the running search every second
+ *
+ * No event is created before the recorder is initialized, by a recording started on the command line or later with
+ * jcmd : the first use of an event class loads the recorder, which takes a few hundred milliseconds. The fields of the
+ * events are then only filled once the recording is known to keep them.
+ */
+final class SearchEvents {
+
+    /**
+     * Live counters of the running searches, sampled by {@link Throughput}.
+     */
+    private static final Set<SearchProgress> RUNNING = ConcurrentHashMap.newKeySet();
+    private static volatile boolean initialized;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                FlightRecorder.addPeriodicEvent(Throughput.class, SearchEvents::emitThroughput);
+                SearchEvents.initialized = true;
+            }
+        });
+    }
+
+    private SearchEvents() {
+    }
+
+    static void searchStarted(SearchProgress progress) {
+        SearchEvents.RUNNING.add(progress);
+    }
+
+    static void searchEnded(SearchProgress progress) {
+        SearchEvents.RUNNING.remove(progress);
+    }
+
+    /**
+     * @return the event of a task starting to search its subtree, or null while the recorder is not initialized
+     */
+    static Task taskStarted() {
+        if (!SearchEvents.initialized) {
+            return null;
+        }
+
+        Task event = new Task();
+        event.begin();
+
+        return event;
+    }
+
+    /**
+     * @param event the event given by {@link #taskStarted}, or null
+     */
+    static void taskEnded(Task event, String prefix, long nodes, long solutions) {
+        if (event == null) {
+            return;
+        }
+
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.prefix = prefix;
+            event.nodes = nodes;
+            event.solutions = solutions;
+            event.commit();
+        }
+    }
+
+    static void solutionFound(int[] cells) {
+        if (!SearchEvents.initialized) {
+            return;
+        }
+
+        Solution event = new Solution();
+        if (event.isEnabled()) {
+            event.cells = Arrays.toString(cells);
+            event.commit();
+        }
+    }
+
+    /**
+     * Sample the counters of each running search into a {@link Throughput} event.
+     */
+    private static void emitThroughput() {
+        for (SearchProgress progress : SearchEvents.RUNNING) {
+            Throughput event = new Throughput();
+            event.nodes = progress.getNodes();
+            event.solutions = progress.getSolutions();
+            event.completedTasks = progress.getCompletedTasks();
+            event.nodesPerSecond = event.nodes * 1e9 / Math.max(1, progress.getElapsedNanos());
+            event.completedPart = progress.getCompletedPart();
+            event.commit();
+        }
+    }
+
+    @Name("magicsquare.SearchTask")
+    @Label("Search Task")
+    @Category("Magic Square")
+    @Description("Search of the subtree below a prefix of the board")
+    @StackTrace(false)
+    static final class Task extends Event {
+
+        @Label("Prefix")
+        @Description("Values of the filled positions, in fill order")
+        String prefix;
+
+        @Label("Nodes")
+        long nodes;
+
+        @Label("Solutions")
+        long solutions;
+    }
+
+    @Name("magicsquare.Solution")
+    @Label("Solution")
+    @Category("Magic Square")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Solution extends Event {
+
+        @Label("Cells")
+        @Description("Cells of the magic square, in row-major order")
+        String cells;
+    }
+
+    @Name("magicsquare.Throughput")
+    @Label("Search Throughput")
+    @Category("Magic Square")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class Throughput extends Event {
+
+        @Label("Nodes")
+        long nodes;
+
+        @Label("Solutions")
+        long solutions;
+
+        @Label("Completed Tasks")
+        long completedTasks;
+
+        @Label("Nodes per Second")
+        double nodesPerSecond;
+
+        @Label("Completed Part")
+        @Description("Part of the search tree below the completed prefixes")
+        @Percentage
+        double completedPart;
+    }
+}
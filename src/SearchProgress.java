@@ -0,0 +1,149 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters of a running search, read by other threads while the workers search.
+ * Each worker thread owns a {@link Worker} to which its search tasks publish their counters once in a while, so the
+ * search never writes to a shared counter at each node, and the readers only sum the counters of the workers.
+ *
+ * The completion of the search is measured on the prefixes, the tasks at the split depth : each split task shares its
+ * part of the tree equally between its subtasks, so that the part of a prefix is the probability that a random probe
+ * from the root reaches it, as in Knuth's estimate of the size of a tree. The completed part of the tree gives the
+ * remaining time, assuming that the remaining prefixes are searched at the same pace.
+ */
+final class SearchProgress {
+
+    /**
+     * Counters of a worker thread, written by this thread only.
+     */
+    static final class Worker {
+
+        private volatile long nodes;
+        private volatile long solutions;
+        private volatile long completedTasks;
+        private volatile double completedPart;
+
+        void add(long nodes, long solutions) {
+            this.nodes += nodes;
+            this.solutions += solutions;
+        }
+
+        /**
+         * Record that a part of the tree has been searched.
+         *
+         * @param tasks number of prefixes completed, 1 for a task at the split depth, 0 for a pruned split task
+         * @param part part of the tree below the completed tasks
+         */
+        void complete(int tasks, double part) {
+            this.completedTasks += tasks;
+            this.completedPart += part;
+        }
+    }
+
+    private final List<Worker> workers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Worker> worker = ThreadLocal.withInitial(() -> {
+        Worker worker = new Worker();
+        this.workers.add(worker);
+
+        return worker;
+    });
+    /**
+     * Number of tasks at the split depth created so far, only counted when the split tasks run.
+     */
+    private final LongAdder tasks = new LongAdder();
+    private final long start = System.nanoTime();
+
+    /**
+     * @return the counters of the current thread
+     */
+    Worker worker() {
+        return this.worker.get();
+    }
+
+    /**
+     * Record that a task at the split depth has been created.
+     */
+    void addTask() {
+        this.tasks.increment();
+    }
+
+    long getNodes() {
+        long nodes = 0;
+        for (Worker worker : this.workers) {
+            nodes += worker.nodes;
+        }
+
+        return nodes;
+    }
+
+    long getSolutions() {
+        long solutions = 0;
+        for (Worker worker : this.workers) {
+            solutions += worker.solutions;
+        }
+
+        return solutions;
+    }
+
+    long getTasks() {
+        return this.tasks.sum();
+    }
+
+    long getCompletedTasks() {
+        long completedTasks = 0;
+        for (Worker worker : this.workers) {
+            completedTasks += worker.completedTasks;
+        }
+
+        return completedTasks;
+    }
+
+    /**
+     * @return the part of the tree already searched, between 0 and 1
+     */
+    double getCompletedPart() {
+        double completedPart = 0;
+        for (Worker worker : this.workers) {
+            completedPart += worker.completedPart;
+        }
+
+        return Math.min(1, completedPart);
+    }
+
+    /**
+     * @return the time since the search started, in nanoseconds
+     */
+    long getElapsedNanos() {
+        return System.nanoTime() - this.start;
+    }
+
+    /**
+     * @return the estimated time left, in nanoseconds, or -1 while no part of the tree is completed
+     */
+    long getRemainingNanos() {
+        double completedPart = this.getCompletedPart();
+
+        return completedPart > 0 ? (long) (this.getElapsedNanos() * (1 - completedPart) / completedPart) : -1;
+    }
+
+    @Override
+    public String toString() {
+        long elapsedNanos = this.getElapsedNanos();
+        long remainingNanos = this.getRemainingNanos();
+
+        return "Progress : " + this.getCompletedTasks() + "/" + this.getTasks() + " prefixes, "
+                + String.format("%.1f", 100 * this.getCompletedPart()) + " % of the tree, "
+                + String.format("%.0f", this.getNodes() * 1e9 / Math.max(1, elapsedNanos)) + " nodes/s, "
+                + this.getSolutions() + " solutions, "
+                + "elapsed " + SearchProgress.formatNanos(elapsedNanos)
+                + ", ETA " + (remainingNanos < 0 ? "unknown" : SearchProgress.formatNanos(remainingNanos));
+    }
+
+    private static String formatNanos(long nanos) {
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(nanos);
+
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
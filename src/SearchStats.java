@@ -0,0 +1,155 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Shape of a search of {@link MagicSquare} : the nodes expanded at each depth, the values rejected by cause, and the
+ * time spent by each task at the split depth. Each search task counts in its own arrays while searching, and the
+ * counters are only summed here once the task is over, so they cost a few increments per node.
+ */
+public final class SearchStats {
+
+    /**
+     * Why a value placed on the board was rejected.
+     */
+    public enum Prune {
+        /**
+         * A row exceeds the expected sum, or is full and misses it.
+         */
+        ROW,
+        /**
+         * A column exceeds the expected sum, or is full and misses it.
+         */
+        COLUMN,
+        /**
+         * A diagonal exceeds the expected sum, or is full and misses it.
+         */
+        DIAGONAL,
+        /**
+         * The missing sum of a line cannot be reached with the free values.
+         */
+        BOUND,
+        /**
+         * The square cannot be in Frenicle standard form any more, in {@link MagicSquare.Mode#ESSENTIALLY_DIFFERENT} mode.
+         */
+        SYMMETRY
+    }
+
+    /**
+     * Number of tasks printed by {@link #toString}, the slowest ones.
+     */
+    private static final int PRINTED_TASKS = 5;
+
+    private final long[] nodesByDepth;
+    private final long[] prunes = new long[Prune.values().length];
+    private String[] taskPrefixes = new String[16];
+    private long[] taskNanos = new long[16];
+    private int taskCount;
+
+    /**
+     * @param depth number of cells of the square
+     */
+    SearchStats(int depth) {
+        this.nodesByDepth = new long[depth];
+    }
+
+    /**
+     * Add the counters of a task.
+     */
+    void add(long[] nodesByDepth, long[] prunes) {
+        for (int depth = 0; depth < nodesByDepth.length; ++depth) {
+            this.nodesByDepth[depth] += nodesByDepth[depth];
+        }
+
+        for (int cause = 0; cause < prunes.length; ++cause) {
+            this.prunes[cause] += prunes[cause];
+        }
+    }
+
+    /**
+     * Add the counters and the task times of other statistics.
+     */
+    void add(SearchStats stats) {
+        this.add(stats.nodesByDepth, stats.prunes);
+
+        for (int task = 0; task < stats.taskCount; ++task) {
+            this.addTask(stats.taskPrefixes[task], stats.taskNanos[task]);
+        }
+    }
+
+    /**
+     * Add the time spent by a task at the split depth.
+     *
+     * @param prefix values of the positions filled before the task, in fill order
+     */
+    void addTask(String prefix, long nanos) {
+        if (this.taskCount == this.taskNanos.length) {
+            this.taskPrefixes = Arrays.copyOf(this.taskPrefixes, 2 * this.taskCount);
+            this.taskNanos = Arrays.copyOf(this.taskNanos, 2 * this.taskCount);
+        }
+
+        this.taskPrefixes[this.taskCount] = prefix;
+        this.taskNanos[this.taskCount] = nanos;
+        ++this.taskCount;
+    }
+
+    /**
+     * @return the number of nodes expanded, positions being filled with each of their candidates
+     */
+    public long getNodes() {
+        return Arrays.stream(this.nodesByDepth).sum();
+    }
+
+    /**
+     * @param depth number of filled positions
+     * @return the number of nodes expanded at the given depth
+     */
+    public long getNodes(int depth) {
+        return this.nodesByDepth[depth];
+    }
+
+    public long getPrunes(Prune cause) {
+        return this.prunes[cause.ordinal()];
+    }
+
+    public int getTaskCount() {
+        return this.taskCount;
+    }
+
+    public String getTaskPrefix(int task) {
+        return this.taskPrefixes[task];
+    }
+
+    public long getTaskNanos(int task) {
+        return this.taskNanos[task];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("Nodes : ").append(this.getNodes()).append('\n');
+        str.append("Nodes by depth :");
+        for (int depth = 0; depth < this.nodesByDepth.length; ++depth) {
+            str.append(' ').append(depth).append('=').append(this.nodesByDepth[depth]);
+        }
+
+        str.append("\nPrunes :");
+        for (Prune cause : Prune.values()) {
+            str.append(' ').append(cause).append('=').append(this.getPrunes(cause));
+        }
+
+        long totalNanos = Arrays.stream(this.taskNanos, 0, this.taskCount).sum();
+        str.append("\nTasks : ").append(this.taskCount)
+                .append(", total ").append(totalNanos / 1000000000.0).append(" seconds");
+
+        IntStream.range(0, this.taskCount)
+                .boxed()
+                .sorted(Comparator.comparingLong((Integer task) -> this.taskNanos[task]).reversed())
+                .limit(SearchStats.PRINTED_TASKS)
+                .forEach(task -> str.append("\n  [").append(this.taskPrefixes[task]).append("] ")
+                        .append(this.taskNanos[task] / 1000000000.0).append(" seconds"));
+
+        return str.toString();
+    }
+}
@@ -0,0 +1,653 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+/**
+ * Binary file of magic squares of one order, each stored as a fixed-size record so that any of them is read in O(1).
+ * The file is made of :
+ *  - a header of {@link #HEADER_SIZE} bytes : the magic number, the order, the encoding, the size of a record,
+ *    the number of records, and the offset and number of entries of the index, 0 if there is none
+ *  - the records, one after the other
+ *  - the optional index by first row : one entry for each first row, sorted, being the N values of the row as bytes,
+ *    then the first record with this row and their number as longs. The records of an indexed file are grouped by
+ *    first row, so that each of them is a single range
+ *
+ * The numbers are big-endian. The values must fit in a byte, which limits the order to 15.
+ */
+public final class SolutionFile implements AutoCloseable {
+
+    /**
+     * How a magic square is stored in a record.
+     */
+    public enum Encoding {
+        /**
+         * The values minus one, each on the bits needed for N^2 - 1, packed from the most significant bit :
+         * a 4x4 takes 8 bytes of nibbles, a 5x5 16 bytes.
+         */
+        PACKED,
+        /**
+         * The rank of the cells among the N^2! permutations of the values, from their Lehmer code :
+         * a 4x4 takes 45 bits in 6 bytes, a 5x5 84 bits in 11 bytes.
+         */
+        RANK
+    }
+
+    static final int HEADER_SIZE = 40;
+    private static final int MAGIC = 0x4D535131;
+    private static final int MAX_ORDER = 15;
+    /**
+     * Greatest number of values whose permutations are ranked in a long, 20! being below 2^63.
+     */
+    private static final int MAX_LONG_RANKED = 20;
+    /**
+     * Greatest length of an array on common JVMs.
+     */
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+    /**
+     * Number of entries of the index read at once.
+     */
+    private static final int INDEX_CHUNK_ENTRIES = 4096;
+
+    private final FileChannel channel;
+    private final int order;
+    private final Encoding encoding;
+    private final int recordSize;
+    private final long recordCount;
+    /**
+     * The index by first row, as the rows and the first record and number of records of each of them, or null.
+     */
+    private final byte[] indexRows;
+    private final long[] indexStarts;
+    private final long[] indexLengths;
+
+    private SolutionFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+
+        ByteBuffer header = ByteBuffer.allocate(SolutionFile.HEADER_SIZE);
+        SolutionFile.readFully(channel, header, 0);
+        header.flip();
+
+        if (header.getInt() != SolutionFile.MAGIC) {
+            throw new IllegalArgumentException("Not a file of magic squares");
+        }
+
+        this.order = header.getInt();
+        this.encoding = Encoding.values()[header.getInt()];
+        this.recordSize = header.getInt();
+        this.recordCount = header.getLong();
+        long indexOffset = header.getLong();
+        long indexEntries = header.getLong();
+
+        if (indexOffset == 0) {
+            this.indexRows = null;
+            this.indexStarts = null;
+            this.indexLengths = null;
+            return;
+        }
+
+        if (indexEntries < 0 || indexEntries > SolutionFile.MAX_ARRAY_LENGTH / Math.max(1, this.order)) {
+            throw new IllegalArgumentException("The index of " + indexEntries + " first rows does not fit in memory");
+        }
+
+        int entries = (int) indexEntries;
+        int entrySize = this.order + 16;
+        this.indexRows = new byte[entries * this.order];
+        this.indexStarts = new long[entries];
+        this.indexLengths = new long[entries];
+
+        ByteBuffer index = ByteBuffer.allocate(SolutionFile.INDEX_CHUNK_ENTRIES * entrySize);
+        long position = indexOffset;
+        for (int e = 0; e < entries; ) {
+            index.clear().limit(Math.min(entries - e, SolutionFile.INDEX_CHUNK_ENTRIES) * entrySize);
+            SolutionFile.readFully(channel, index, position);
+            position += index.limit();
+            index.flip();
+
+            for (; index.hasRemaining(); ++e) {
+                index.get(this.indexRows, e * this.order, this.order);
+                this.indexStarts[e] = index.getLong();
+                this.indexLengths[e] = index.getLong();
+            }
+        }
+    }
+
+    /**
+     * Open a file of magic squares to read it.
+     */
+    public static SolutionFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            return new SolutionFile(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a file of magic squares, replacing any existing one.
+     *
+     * @param order order of the magic squares
+     * @param encoding how the magic squares are stored
+     * @param indexed true to write the index by first row
+     */
+    public static Writer create(Path path, int order, Encoding encoding, boolean indexed) throws IOException {
+        return new Writer(path, order, encoding, indexed);
+    }
+
+    public int getOrder() {
+        return this.order;
+    }
+
+    public Encoding getEncoding() {
+        return this.encoding;
+    }
+
+    public int getRecordSize() {
+        return this.recordSize;
+    }
+
+    public long size() {
+        return this.recordCount;
+    }
+
+    /**
+     * Read the magic square at the given index.
+     *
+     * @return the cells of the magic square, in row-major order
+     */
+    public int[] read(long index) throws IOException {
+        if (index < 0 || index >= this.recordCount) {
+            throw new IndexOutOfBoundsException("No magic square " + index + " in a file of " + this.recordCount);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(this.recordSize);
+        SolutionFile.readFully(this.channel, record, SolutionFile.HEADER_SIZE + index * this.recordSize);
+
+        int[] cells = new int[this.order * this.order];
+        SolutionFile.decode(this.encoding, this.recordSize, record, 0, cells);
+
+        return cells;
+    }
+
+    /**
+     * Get the indexes of the magic squares whose first row is the given one, from the index by first row.
+     *
+     * @throws IllegalStateException if the file has no index
+     */
+    public LongStream recordsWithFirstRow(int[] firstRow) {
+        if (this.indexRows == null) {
+            throw new IllegalStateException("The file has no index by first row");
+        }
+
+        byte[] row = new byte[this.order];
+        for (int j = 0; j < this.order; ++j) {
+            row[j] = (byte) firstRow[j];
+        }
+
+        int low = 0;
+        int high = this.indexStarts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (this.compareRow(middle, row) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        if (low == this.indexStarts.length || this.compareRow(low, row) != 0) {
+            return LongStream.empty();
+        }
+
+        return LongStream.range(this.indexStarts[low], this.indexStarts[low] + this.indexLengths[low]);
+    }
+
+    private int compareRow(int entry, byte[] row) {
+        return Arrays.compareUnsigned(this.indexRows, entry * this.order, (entry + 1) * this.order, row, 0, this.order);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+
+            if (read < 0) {
+                throw new IOException("Truncated file of magic squares");
+            }
+
+            position += read;
+        }
+    }
+
+    /**
+     * @return the number of bytes of a record of the given order
+     */
+    static int recordSize(int order, Encoding encoding) {
+        int valueCount = order * order;
+
+        if (encoding == Encoding.PACKED) {
+            return (valueCount * SolutionFile.valueBits(valueCount) + 7) / 8;
+        }
+
+        return (SolutionFile.factorial(valueCount).subtract(BigInteger.ONE).bitLength() + 7) / 8;
+    }
+
+    static int valueBits(int valueCount) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(valueCount - 1));
+    }
+
+    private static BigInteger factorial(int n) {
+        BigInteger factorial = BigInteger.ONE;
+        for (int k = 2; k <= n; ++k) {
+            factorial = factorial.multiply(BigInteger.valueOf(k));
+        }
+
+        return factorial;
+    }
+
+    /**
+     * Encode the cells of a magic square into a record.
+     */
+    static void encode(Encoding encoding, int[] cells, byte[] record) {
+        Arrays.fill(record, (byte) 0);
+
+        if (encoding == Encoding.PACKED) {
+            int bits = SolutionFile.valueBits(cells.length);
+
+            for (int k = 0; k < cells.length; ++k) {
+                int value = cells[k] - 1;
+
+                for (int b = bits - 1; b >= 0; --b) {
+                    if ((value & (1 << b)) != 0) {
+                        int bit = k * bits + bits - 1 - b;
+                        record[bit >>> 3] |= (byte) (0x80 >>> (bit & 7));
+                    }
+                }
+            }
+
+            return;
+        }
+
+        // Lehmer code : the digit of a cell is the number of values left that are smaller than its own
+        long[] unused = SolutionFile.allValues(cells.length);
+        if (cells.length <= SolutionFile.MAX_LONG_RANKED) {
+            long rank = 0;
+            for (int k = 0; k < cells.length; ++k) {
+                rank = rank * (cells.length - k) + SolutionFile.takeDigit(unused, cells[k]);
+            }
+
+            for (int b = record.length - 1; b >= 0; --b, rank >>>= 8) {
+                record[b] = (byte) rank;
+            }
+
+            return;
+        }
+
+        BigInteger rank = BigInteger.ZERO;
+        for (int k = 0; k < cells.length; ++k) {
+            rank = rank.multiply(BigInteger.valueOf(cells.length - k)).add(BigInteger.valueOf(SolutionFile.takeDigit(unused, cells[k])));
+        }
+
+        byte[] bytes = rank.toByteArray();
+        int length = Math.min(bytes.length, record.length);
+        System.arraycopy(bytes, bytes.length - length, record, record.length - length, length);
+    }
+
+    /**
+     * Decode the record starting at the given offset of the buffer into the cells of a magic square.
+     * The bytes are read at absolute positions, so the buffer is left untouched.
+     */
+    static void decode(Encoding encoding, int recordSize, ByteBuffer bytes, int offset, int[] cells) {
+        if (encoding == Encoding.PACKED) {
+            int bits = SolutionFile.valueBits(cells.length);
+
+            for (int k = 0; k < cells.length; ++k) {
+                cells[k] = SolutionFile.packedValue(bytes, offset, bits, k);
+            }
+
+            return;
+        }
+
+        long[] unused = SolutionFile.allValues(cells.length);
+
+        if (cells.length <= SolutionFile.MAX_LONG_RANKED) {
+            long rank = 0;
+            for (int b = 0; b < recordSize; ++b) {
+                rank = (rank << 8) | (bytes.get(offset + b) & 0xFF);
+            }
+
+            // The digits come out from the last cell, whose radix is 1, to the first one
+            int[] digits = new int[cells.length];
+            for (int k = cells.length - 1; k >= 0; --k) {
+                digits[k] = (int) (rank % (cells.length - k));
+                rank /= cells.length - k;
+            }
+
+            for (int k = 0; k < cells.length; ++k) {
+                cells[k] = SolutionFile.takeValue(unused, digits[k]);
+            }
+
+            return;
+        }
+
+        byte[] magnitude = new byte[recordSize];
+        for (int b = 0; b < recordSize; ++b) {
+            magnitude[b] = bytes.get(offset + b);
+        }
+
+        BigInteger rank = new BigInteger(1, magnitude);
+        int[] digits = new int[cells.length];
+        for (int k = cells.length - 1; k >= 0; --k) {
+            BigInteger[] division = rank.divideAndRemainder(BigInteger.valueOf(cells.length - k));
+            digits[k] = division[1].intValue();
+            rank = division[0];
+        }
+
+        for (int k = 0; k < cells.length; ++k) {
+            cells[k] = SolutionFile.takeValue(unused, digits[k]);
+        }
+    }
+
+    /**
+     * Read a single cell of a {@link Encoding#PACKED} record, without decoding the others.
+     *
+     * @param bits number of bits of a value, see {@link #valueBits}
+     * @param position position of the cell in row-major order
+     */
+    static int packedValue(ByteBuffer bytes, int offset, int bits, int position) {
+        int value = 0;
+
+        for (int b = 0; b < bits; ++b) {
+            int bit = position * bits + b;
+            value = (value << 1) | ((bytes.get(offset + (bit >>> 3)) >>> (7 - (bit & 7))) & 1);
+        }
+
+        return value + 1;
+    }
+
+    private static long[] allValues(int valueCount) {
+        long[] values = new long[(valueCount + 63) >>> 6];
+        for (int value = 0; value < valueCount; ++value) {
+            values[value >>> 6] |= 1L << value;
+        }
+
+        return values;
+    }
+
+    /**
+     * Remove a value from the bitset of the values left.
+     *
+     * @return the number of values left that are smaller
+     */
+    private static int takeDigit(long[] unused, int value) {
+        int word = (value - 1) >>> 6;
+        int digit = Long.bitCount(unused[word] & ((1L << (value - 1)) - 1));
+        for (int w = 0; w < word; ++w) {
+            digit += Long.bitCount(unused[w]);
+        }
+
+        unused[word] &= ~(1L << (value - 1));
+
+        return digit;
+    }
+
+    /**
+     * Remove the value with the given number of smaller values from the bitset of the values left.
+     *
+     * @return the value
+     */
+    private static int takeValue(long[] unused, int digit) {
+        for (int word = 0; word < unused.length; ++word) {
+            int count = Long.bitCount(unused[word]);
+
+            if (digit >= count) {
+                digit -= count;
+                continue;
+            }
+
+            long values = unused[word];
+            for (int d = 0; d < digit; ++d) {
+                values &= values - 1;
+            }
+
+            int bit = Long.numberOfTrailingZeros(values);
+            unused[word] &= ~(1L << bit);
+
+            return (word << 6) + bit + 1;
+        }
+
+        throw new IllegalArgumentException("Invalid rank of a magic square");
+    }
+
+    /**
+     * Writes the magic squares one after the other, from any thread, then the index and the header on closing.
+     * The records of an indexed file are first written in the order they come to a temporary file next to it, then
+     * copied grouped by first row on closing.
+     * It can be used as the sink of {@link MagicSquare#enumerate(int, MagicSquare.Mode, int, java.util.function.Consumer)}.
+     */
+    public static final class Writer implements AutoCloseable {
+
+        private final FileChannel channel;
+        /**
+         * The temporary file of the records of an indexed file, or null.
+         */
+        private final FileChannel unsorted;
+        private final OutputStream output;
+        private final int order;
+        private final Encoding encoding;
+        private final int recordSize;
+        /**
+         * Record of each writing thread, encoded outside of the lock.
+         */
+        private final ThreadLocal<byte[]> record;
+        private final boolean indexed;
+        private long recordCount;
+        /**
+         * The runs of consecutive records sharing their first row, in the temporary file.
+         */
+        private byte[] runRows;
+        private long[] runStarts;
+        private long[] runLengths;
+        private int runCount;
+
+        private Writer(Path path, int order, Encoding encoding, boolean indexed) throws IOException {
+            if (order < 1 || order > SolutionFile.MAX_ORDER) {
+                throw new IllegalArgumentException("A file of magic squares needs an order between 1 and "
+                        + SolutionFile.MAX_ORDER + ", got " + order);
+            }
+
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+
+            if (indexed) {
+                try {
+                    Path unsorted = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName() + ".", ".records");
+                    this.unsorted = FileChannel.open(unsorted, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.DELETE_ON_CLOSE);
+                } catch (IOException | RuntimeException e) {
+                    this.channel.close();
+                    throw e;
+                }
+
+                this.output = new BufferedOutputStream(Channels.newOutputStream(this.unsorted), 1 << 16);
+            } else {
+                this.unsorted = null;
+                this.channel.position(SolutionFile.HEADER_SIZE);
+                this.output = new BufferedOutputStream(Channels.newOutputStream(this.channel), 1 << 16);
+            }
+
+            this.order = order;
+            this.encoding = encoding;
+            this.recordSize = SolutionFile.recordSize(order, encoding);
+            this.record = ThreadLocal.withInitial(() -> new byte[this.recordSize]);
+            this.indexed = indexed;
+            this.runRows = new byte[16 * order];
+            this.runStarts = new long[16];
+            this.runLengths = new long[16];
+        }
+
+        /**
+         * Append a magic square.
+         *
+         * @param cells the cells of the magic square, in row-major order
+         */
+        public void write(int[] cells) {
+            byte[] record = this.record.get();
+            SolutionFile.encode(this.encoding, cells, record);
+
+            synchronized (this) {
+                try {
+                    this.output.write(record);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                if (this.indexed) {
+                    this.addToRun(cells);
+                }
+
+                ++this.recordCount;
+            }
+        }
+
+        private void addToRun(int[] cells) {
+            int n = this.order;
+
+            if (this.runCount > 0 && this.runStarts[this.runCount - 1] + this.runLengths[this.runCount - 1] == this.recordCount) {
+                boolean sameRow = true;
+                for (int j = 0; j < n && sameRow; ++j) {
+                    sameRow = this.runRows[(this.runCount - 1) * n + j] == (byte) cells[j];
+                }
+
+                if (sameRow) {
+                    ++this.runLengths[this.runCount - 1];
+                    return;
+                }
+            }
+
+            if (this.runCount == this.runStarts.length) {
+                this.runRows = Arrays.copyOf(this.runRows, 2 * this.runRows.length);
+                this.runStarts = Arrays.copyOf(this.runStarts, 2 * this.runCount);
+                this.runLengths = Arrays.copyOf(this.runLengths, 2 * this.runCount);
+            }
+
+            for (int j = 0; j < n; ++j) {
+                this.runRows[this.runCount * n + j] = (byte) cells[j];
+            }
+            this.runStarts[this.runCount] = this.recordCount;
+            this.runLengths[this.runCount] = 1;
+            ++this.runCount;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                this.output.flush();
+
+                long indexOffset = 0;
+                long indexEntries = 0;
+
+                if (this.indexed) {
+                    indexOffset = SolutionFile.HEADER_SIZE + this.recordCount * this.recordSize;
+                    indexEntries = this.writeGroupedRecords(indexOffset);
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(SolutionFile.HEADER_SIZE);
+                header.putInt(SolutionFile.MAGIC)
+                        .putInt(this.order)
+                        .putInt(this.encoding.ordinal())
+                        .putInt(this.recordSize)
+                        .putLong(this.recordCount)
+                        .putLong(indexOffset)
+                        .putLong(indexEntries);
+                header.flip();
+
+                while (header.hasRemaining()) {
+                    this.channel.write(header, header.position());
+                }
+            } finally {
+                this.output.close();
+                this.channel.close();
+            }
+        }
+
+        /**
+         * Copy the runs of the temporary file sorted by first row, then by first record, and write the index with one
+         * entry for each first row after them.
+         *
+         * @return the number of entries of the index
+         */
+        private long writeGroupedRecords(long indexOffset) throws IOException {
+            int n = this.order;
+            Integer[] runs = new Integer[this.runCount];
+            for (int r = 0; r < runs.length; ++r) {
+                runs[r] = r;
+            }
+
+            Arrays.sort(runs, (a, b) -> {
+                int comparison = this.compareRuns(a, b);
+
+                return comparison != 0 ? comparison : Long.compare(this.runStarts[a], this.runStarts[b]);
+            });
+
+            this.channel.position(SolutionFile.HEADER_SIZE);
+            for (int run : runs) {
+                long position = this.runStarts[run] * this.recordSize;
+                long end = position + this.runLengths[run] * this.recordSize;
+
+                while (position < end) {
+                    position += this.unsorted.transferTo(position, end - position, this.channel);
+                }
+            }
+
+            this.channel.position(indexOffset);
+            OutputStream index = new BufferedOutputStream(Channels.newOutputStream(this.channel), 1 << 16);
+            ByteBuffer entry = ByteBuffer.allocate(n + 16);
+            long entries = 0;
+            long start = 0;
+
+            for (int r = 0; r < runs.length; ) {
+                long length = 0;
+                int first = runs[r];
+
+                for (; r < runs.length && this.compareRuns(first, runs[r]) == 0; ++r) {
+                    length += this.runLengths[runs[r]];
+                }
+
+                entry.clear();
+                entry.put(this.runRows, first * n, n).putLong(start).putLong(length);
+                index.write(entry.array());
+                start += length;
+                ++entries;
+            }
+
+            // Flushed but not closed, which would close the channel before the header is written
+            index.flush();
+
+            return entries;
+        }
+
+        private int compareRuns(int a, int b) {
+            int n = this.order;
+
+            return Arrays.compareUnsigned(this.runRows, a * n, (a + 1) * n, this.runRows, b * n, (b + 1) * n);
+        }
+    }
+}